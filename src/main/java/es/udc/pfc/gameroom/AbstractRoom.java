@@ -21,15 +21,19 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.bson.BSONObject;
 import org.bson.types.BasicBSONList;
 import org.bson.types.ObjectId;
 
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -49,11 +53,22 @@ public abstract class AbstractRoom implements Room {
 	
 	protected final Logger log = Logger.getLogger(getClass().getSimpleName());
 	
+	/**
+	 * Version of the compact protocol, where clients send a batch of
+	 * space-separated commands in the "c" attribute of the game extension.
+	 */
+	protected static final String COMPACT_VERSION = "1";
+	
+	private static final int MAX_COMPACT_COMMANDS = 8;
+	private static final String INTERNAL_ERROR = "internal-error";
+	private static final Splitter COMMAND_SPLITTER = Splitter.on(' ').omitEmptyStrings();
+	
 	abstract protected String getXMLNS();
 	abstract protected void updateSubject();
 	abstract protected void playerJoined(JID user);
 	abstract protected void playerLeft(JID user);
 	abstract protected void commandReceived(JID user, XMLElement x) throws Exception;
+	abstract protected void compactCommandReceived(JID user, String command) throws Exception;
 
 	private final GameComponent component;
 	private final ObjectId dbId;
@@ -63,13 +78,15 @@ public abstract class AbstractRoom implements Room {
 	private final JID roomJID;
 	private final JID arbiterJID;
 	
-	protected final List<JID> players;
+	protected final Set<JID> players;
+	private final Set<JID> compactClients;
 
 	protected AbstractRoom(final GameComponent component, final JID roomJID) {
 		this.component = checkNotNull(component);
 		this.roomJID = checkNotNull(roomJID);
 		this.arbiterJID = JID.jid(roomJID.getDomain(), roomJID.getNode(), "arbiter");
-		this.players = Lists.newArrayList();
+		this.players = Sets.newLinkedHashSet();
+		this.compactClients = Sets.newHashSet();
 		this.dbId = ObjectId.get();
 		this.startTime = new Date();
 	}
@@ -78,7 +95,8 @@ public abstract class AbstractRoom implements Room {
 		this.component = checkNotNull(component);
 		this.roomJID = JID.jid(dbObject.get("room").toString());
 		this.arbiterJID = JID.jid(roomJID.getDomain(), roomJID.getNode(), "arbiter");
-		this.players = Lists.newArrayList();
+		this.players = Sets.newLinkedHashSet();
+		this.compactClients = Sets.newHashSet();
 		this.dbId = (ObjectId)dbObject.get("_id");
 		this.startTime = (Date)dbObject.get("started");
 		
@@ -121,6 +139,13 @@ public abstract class AbstractRoom implements Room {
 		fields.put("muc#roomconfig_publicroom", no);
 		fields.put("muc#roomconfig_membersonly", si);
 		fields.put("muc#roomconfig_changesubject", no);
+		
+		// Any component of the pool may have to take the room over
+		final List<String> owners = Lists.newArrayList();
+		for (final JID owner : component.getShardJIDs()) {
+			owners.add(owner.toString());
+		}
+		fields.put("muc#roomconfig_roomowners", owners);
 
 		final IQ config = new IQ(IQ.Type.set);
 		config.setFrom(component.getJID());
@@ -188,6 +213,7 @@ public abstract class AbstractRoom implements Room {
 		
 		log.info(user.toString() + " left");
 		players.remove(user);
+		compactClients.remove(user);
 	}
 
 	@Override
@@ -213,6 +239,20 @@ public abstract class AbstractRoom implements Room {
 		final XMLElement x = message.getExtension("x", getXMLNS());
 		if (x == null)
 			return;
+		
+		final Throttle.Result allowed = component.allowCommand(this, message.getFrom());
+		if (allowed != Throttle.Result.ALLOWED) {
+			if (allowed == Throttle.Result.REJECTED) {
+				sendError(message.getFrom(), "rate-limited");
+			}
+			return;
+		}
+		
+		if (x.hasAttribute("c")) {
+			compactReceived(message.getFrom(), x);
+			return;
+		}
+		compactClients.remove(message.getFrom());
 
 		if (x.hasChild("ping")) {
 			final Message msg = new Message();
@@ -224,15 +264,88 @@ public abstract class AbstractRoom implements Room {
 		try {
 			commandReceived(message.getFrom(), x);
 		} catch (Exception e) {
-			final Message msg = new Message();
-			msg.addExtension("x", getXMLNS()).addChild("error").setAttribute("status", e.getMessage());
-			sendMessage(message.getFrom(), msg);
+			sendError(message.getFrom(), getStatus(e));
+		}
+	}
+	
+	private final void compactReceived(final JID user, final XMLElement x) {
+		if (!COMPACT_VERSION.equals(x.getAttribute("v"))) {
+			sendError(user, "unsupported-version");
+			return;
+		}
+		compactClients.add(user);
+		
+		final StringBuilder replies = new StringBuilder();
+		int count = 0;
+		for (final String command : COMMAND_SPLITTER.split(x.getAttribute("c"))) {
+			if (++count > MAX_COMPACT_COMMANDS) {
+				replies.append(" error:too-many-commands");
+				break;
+			}
+			
+			// The message itself paid for the first command
+			if (count > 1) {
+				final Throttle.Result allowed = component.allowCommand(this, user);
+				if (allowed != Throttle.Result.ALLOWED) {
+					if (allowed == Throttle.Result.REJECTED) {
+						replies.append(" error:rate-limited");
+					}
+					break;
+				}
+			}
+			
+			if (command.equals("ping")) {
+				replies.append(" pong");
+				continue;
+			}
+			
+			try {
+				compactCommandReceived(user, command);
+			} catch (Exception e) {
+				// The rest of the batch depended on this command
+				replies.append(" error:").append(getStatus(e));
+				break;
+			}
+		}
+		
+		if (replies.length() > 0) {
+			sendMessage(user, compactMessage(replies.substring(1)));
 		}
 	}
 	
+	/**
+	 * Checks whether every player has negotiated the compact protocol.
+	 */
+	protected final boolean compactPlayers() {
+		return compactClients.containsAll(players);
+	}
+	
+	protected final Message compactMessage(final String commands) {
+		final Message msg = new Message();
+		final XMLElement x = msg.addExtension("x", getXMLNS());
+		x.setAttribute("v", COMPACT_VERSION);
+		x.setAttribute("c", commands);
+		return msg;
+	}
+	
+	/**
+	 * Gets the status reported to the client for a failed command. Only the
+	 * exceptions thrown by rooms carry a status as their message.
+	 */
+	private static final String getStatus(final Exception e) {
+		return e.getMessage() != null ? e.getMessage() : INTERNAL_ERROR;
+	}
+	
+	protected final void sendError(final JID user, final String status) {
+		final Message msg = new Message();
+		msg.addExtension("x", getXMLNS()).addChild("error").setAttribute("status", status);
+		sendMessage(user, msg);
+	}
+	
 	protected abstract void buildBSONObject(final BSONObject data);
 	
-	protected final void saveDBObject() {
+	@Override
+	public final DBObject getDBObject() {
 		final DBObject result = new BasicDBObject("_id", dbId);
 		
 		result.put("room", getJID().toString());
@@ -247,10 +360,19 @@ public abstract class AbstractRoom implements Room {
 		result.put("players", playerList);
 		
 		buildBSONObject(result);
-		Database.saveGame(result);
+		return result;
+	}
+	
+	protected final void saveDBObject() {
+		final DBObject result = getDBObject();
+		component.saveGame(result);
 		System.out.println("saved: " + result.toString());
 	}
 	
+	protected final Random getRandom() {
+		return component.getRandom();
+	}
+	
 	protected final void sendGroupMessage(final Message message) {
 		sendMessage(getJID(), message);
 	}
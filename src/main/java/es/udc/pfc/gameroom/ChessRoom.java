@@ -20,6 +20,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -27,6 +29,10 @@ import org.bson.BSONObject;
 import org.bson.BasicBSONObject;
 import org.bson.types.BasicBSONList;
 
+import com.google.common.collect.BiMap;
+import com.google.common.collect.EnumHashBiMap;
+import com.google.common.collect.Lists;
+
 import es.udc.pfc.gamelib.board.Position;
 import es.udc.pfc.gamelib.chess.ChessColor;
 import es.udc.pfc.gamelib.chess.ChessGame;
@@ -37,19 +43,29 @@ import es.udc.pfc.xmpp.xml.XMLElement;
 
 public abstract class ChessRoom extends AbstractRoom {
 	
+	private static final Pattern COMPACT_MOVE = Pattern.compile("([a-z]+[0-9]+)([a-z]+[0-9]+)");
+	
 	protected final ChessGame chessGame;
 	
+	private final BiMap<ChessColor, JID> seats;
+	
 	private boolean joinable;
 
 	protected ChessRoom(final GameComponent component, final JID roomJID, final ChessGame chessGame) {
 		super(component, roomJID);
 		this.chessGame = checkNotNull(chessGame);
+		this.seats = EnumHashBiMap.create(ChessColor.class);
 		joinable = true;
 	}
 	
 	protected ChessRoom(final GameComponent component, final BSONObject dbObject, final ChessGame chessGame) {
 		super(component, dbObject);
 		this.chessGame = checkNotNull(chessGame);
+		this.seats = EnumHashBiMap.create(ChessColor.class);
+		
+		if (players.size() == 2) {
+			takeSeats(Lists.newArrayList(players));
+		}
 		
 		final BasicBSONList moves = (BasicBSONList)dbObject.get("moves");
 		for (final Object moveObj : moves) {
@@ -97,19 +113,54 @@ public abstract class ChessRoom extends AbstractRoom {
 		if (x.hasChild("move")) {
 			final XMLElement xmove = x.getFirstChild("move");
 			
-			if (playerColor(user) != chessGame.getCurrentTurn())
-				throw new Exception("invalid-turn");
+			movePiece(user, xmove.getAttribute("from"), xmove.getAttribute("to"));
+		}
+	}
+	
+	/**
+	 * Handles compact commands, where a move is written as its origin and
+	 * destination squares, e.g. "a2a3".
+	 */
+	@Override
+	protected final void compactCommandReceived(final JID user, final String command) throws Exception {
+		if (players.size() != 2) 
+			throw new Exception("not-started");
+		
+		final Matcher matcher = COMPACT_MOVE.matcher(command);
+		if (!matcher.matches())
+			throw new Exception("unknown-command");
+		
+		movePiece(user, matcher.group(1), matcher.group(2));
+	}
+	
+	private final void movePiece(final JID user, @Nullable final String fromString, @Nullable final String toString) throws Exception {
+		if (playerColor(user) != chessGame.getCurrentTurn())
+			throw new Exception("invalid-turn");
 
-			final Position from = Position.fromString(xmove.getAttribute("from"));
-			final Position to = Position.fromString(xmove.getAttribute("to"));
+		final Position from = fromString != null ? Position.fromString(fromString) : null;
+		final Position to = toString != null ? Position.fromString(toString) : null;
 
-			if (from == null || to == null)
-				throw new Exception("invalid-position");
+		if (from == null || to == null)
+			throw new Exception("invalid-position");
 
-			final ChessMovement move = chessGame.movePiece(from, to);
-			if (move == null)
-				throw new Exception("invalid-movement");
+		final ChessMovement move = chessGame.movePiece(from, to);
+		if (move == null)
+			throw new Exception("invalid-movement");
+		
+		if (compactPlayers()) {
+			final StringBuilder commands = new StringBuilder();
+			commands.append(move.getFrom()).append(move.getTo());
+			
+			if (chessGame.isFinished()) {
+				if (chessGame.getWinner() != null) {
+					commands.append(" winner:").append(chessGame.getWinner().name());
+				} else {
+					commands.append(" draw");
+				}
+			}
 			
+			sendGroupMessage(compactMessage(commands.toString()));
+		} else {
 			final Message result = new Message();
 			final XMLElement xr = result.addExtension("x", getXMLNS());
 			final XMLElement xrmove = xr.addChild("move");
@@ -125,23 +176,25 @@ public abstract class ChessRoom extends AbstractRoom {
 			}
 			
 			sendGroupMessage(result);
-			
-			saveDBObject();
 		}
+		
+		saveDBObject();
 	}
 
 	@Override
 	protected void playerJoined(final JID user) {
 		if (players.size() == 2) {
-			Collections.shuffle(players);
+			final List<JID> order = Lists.newArrayList(players);
+			Collections.shuffle(order, getRandom());
+			takeSeats(order);
 			
 			Message msg = new Message();
 			msg.addExtension("x", getXMLNS()).addChild("start").setAttribute("color", ChessColor.WHITE.name());
-			sendMessage(players.get(0), msg);
+			sendMessage(seats.get(ChessColor.WHITE), msg);
 			
 			msg = new Message();
 			msg.addExtension("x", getXMLNS()).addChild("start").setAttribute("color", ChessColor.BLACK.name());
-			sendMessage(players.get(1), msg);
+			sendMessage(seats.get(ChessColor.BLACK), msg);
 			
 			joinable = false;
 			
@@ -167,14 +220,20 @@ public abstract class ChessRoom extends AbstractRoom {
 		}
 	}
 	
+	/**
+	 * Seats the players as white and black, keeping that order when saved.
+	 */
+	private final void takeSeats(final List<JID> order) {
+		players.clear();
+		players.addAll(order);
+		
+		seats.put(ChessColor.WHITE, order.get(0));
+		seats.put(ChessColor.BLACK, order.get(1));
+	}
+	
 	@Nullable
 	private final ChessColor playerColor(final JID user) {
-		if (players.indexOf(user) == 0)
-			return ChessColor.WHITE;
-		else if (players.indexOf(user) == 1)
-			return ChessColor.BLACK;
-		
-		return null;
+		return seats.inverse().get(user);
 	}
 	
 }
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import es.udc.pfc.xmpp.stanza.JID;
+
+/**
+ * Set of components that serve games together, each one over its own
+ * connection to the server.
+ * 
+ * The first component takes the configured domain and receives play and
+ * lobby requests; the others take numbered subdomains. Each room is hosted
+ * by the component its node hashes to, or the next connected one when that
+ * is offline, so all the traffic of a room goes through a single
+ * connection. Every component is an owner of every room, so any of them can
+ * join it as the arbiter. When a component disconnects, the rooms it hosted
+ * are taken over by the connected ones; if there are none, the started games
+ * are restored by the first one to connect. Sessions, the lobby and rate
+ * limits are shared by all of them.
+ */
+public final class ComponentPool {
+
+	// TODO: Turn this into a configuration option
+	private static final long MAX_THROTTLED_USERS = 100000;
+
+	private final String domain;
+	private final List<GameComponent> shards;
+
+	private final long seed;
+	private final Random random;
+	private final Ticker ticker;
+	private final boolean replaying;
+
+	private final Sessions sessions;
+	private final Lobby lobby;
+	private final Throttle playThrottle;
+	private final Throttle commandThrottle;
+	private final EventTimer timer;
+
+	public ComponentPool(final String domain, final int size) {
+		this(domain, size, System.nanoTime(), Ticker.systemTicker(), newExecutorTimer(), null, false);
+	}
+
+	/**
+	 * Creates a pool with its own source of time, randomness and delayed
+	 * tasks, and optionally sending its stanzas through the given channel
+	 * instead of the connections to the server. A replaying pool neither
+	 * saves games nor flushes presences on its own, so the capture being
+	 * replayed decides when that happens.
+	 */
+	ComponentPool(final String domain, final int size, final long seed, final Ticker ticker, final EventTimer timer, @Nullable final StanzaChannel channel, final boolean replaying) {
+		checkArgument(size > 0, "size must be positive");
+
+		this.domain = checkNotNull(domain);
+		this.seed = seed;
+		this.random = new Random(seed);
+		this.ticker = ticker;
+		this.timer = timer;
+		this.replaying = replaying;
+
+		sessions = new Sessions();
+		lobby = new Lobby(ticker);
+		playThrottle = new Throttle(0.5, 3, MAX_THROTTLED_USERS, ticker);
+		commandThrottle = new Throttle(5, 10, MAX_THROTTLED_USERS, ticker);
+
+		final ImmutableList.Builder<GameComponent> builder = ImmutableList.builder();
+		for (int i = 0; i < size; i++) {
+			builder.add(new GameComponent(this, channel));
+		}
+		shards = builder.build();
+	}
+
+	public final int size() {
+		return shards.size();
+	}
+
+	public final GameComponent getShard(final int index) {
+		return shards.get(index);
+	}
+
+	/**
+	 * Domain of the component at the given index: the first one takes the
+	 * given domain, and the rest append their index to its first label,
+	 * e.g. games-1.localhost.
+	 */
+	public static final String getShardDomain(final String domain, final int index) {
+		if (index == 0)
+			return domain;
+
+		final int dot = domain.indexOf('.');
+		return dot < 0 ? domain + "-" + index : domain.substring(0, dot) + "-" + index + domain.substring(dot);
+	}
+
+	/**
+	 * Addresses of all the components, whether connected or not.
+	 */
+	final List<JID> getShardJIDs() {
+		final ImmutableList.Builder<JID> builder = ImmutableList.builder();
+		for (int i = 0; i < shards.size(); i++) {
+			builder.add(JID.jid(getShardDomain(domain, i)));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Chooses the component that should host a room, skipping the ones that
+	 * are not connected.
+	 */
+	final GameComponent getOwner(final String node) {
+		final int home = getHome(node);
+		for (int i = 0; i < shards.size(); i++) {
+			final GameComponent shard = shards.get((home + i) % shards.size());
+			if (shard.isOnline())
+				return shard;
+		}
+		return shards.get(home);
+	}
+
+	@Nullable
+	final Room findRoom(final String node) {
+		for (final GameComponent shard : shards) {
+			final Room room = shard.getRoom(node);
+			if (room != null)
+				return room;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the component that hosts a room.
+	 */
+	@Nullable
+	final GameComponent getHost(final Room room) {
+		for (final GameComponent shard : shards) {
+			if (shard.getRoom(room.getJID().getNode()) == room)
+				return shard;
+		}
+		return null;
+	}
+
+	final void removeRoom(final Room room) {
+		for (final GameComponent shard : shards) {
+			if (shard.removeRoom(room))
+				return;
+		}
+	}
+
+	private static final EventTimer newExecutorTimer() {
+		final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("component-timer").build());
+		return new EventTimer() {
+			@Override
+			public Future<?> schedule(Runnable task, long delay, TimeUnit unit) {
+				return executor.schedule(task, delay, unit);
+			}
+		};
+	}
+
+	private final int getHome(final String node) {
+		return (node.hashCode() & Integer.MAX_VALUE) % shards.size();
+	}
+
+	public final String getDomain() {
+		return domain;
+	}
+
+	final long getSeed() {
+		return seed;
+	}
+
+	final Random getRandom() {
+		return random;
+	}
+
+	final Ticker getTicker() {
+		return ticker;
+	}
+
+	final boolean isReplaying() {
+		return replaying;
+	}
+
+	final Sessions getSessions() {
+		return sessions;
+	}
+
+	final Lobby getLobby() {
+		return lobby;
+	}
+
+	final Throttle getPlayThrottle() {
+		return playThrottle;
+	}
+
+	final Throttle getCommandThrottle() {
+		return commandThrottle;
+	}
+
+	/**
+	 * Number of IQs sent by every shard that are still awaiting a response.
+	 */
+	final int getOutstandingIQs() {
+		int outstanding = 0;
+		for (final GameComponent shard : shards) {
+			outstanding += shard.getPendingIQs().getOutstanding();
+		}
+		return outstanding;
+	}
+
+	final EventTimer getTimer() {
+		return timer;
+	}
+
+}
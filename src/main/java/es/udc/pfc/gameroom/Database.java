@@ -17,8 +17,10 @@
 package es.udc.pfc.gameroom;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 
@@ -51,4 +53,15 @@ public final class Database {
 		return games.find(query);
 	}
 	
+	/**
+	 * Streams all finished games, fetching them from the server in batches.
+	 * The cursor never times out, so it must be closed once done.
+	 */
+	public static final DBCursor getFinishedGames(final int batchSize) {
+		final DBObject query = new BasicDBObject();
+		query.put("finished", true);
+		
+		return games.find(query).batchSize(batchSize).addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+	}
+	
 }
@@ -17,14 +17,26 @@
 package es.udc.pfc.gameroom;
 
 import java.io.BufferedReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 import org.bson.BSONObject;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureCallback;
@@ -32,6 +44,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.Service.State;
+import com.mongodb.DBObject;
 
 import es.udc.pfc.xmpp.component.AbstractXMPPComponent;
 import es.udc.pfc.xmpp.component.ComponentService;
@@ -39,17 +52,210 @@ import es.udc.pfc.xmpp.stanza.IQ;
 import es.udc.pfc.xmpp.stanza.JID;
 import es.udc.pfc.xmpp.stanza.Message;
 import es.udc.pfc.xmpp.stanza.Presence;
+import es.udc.pfc.xmpp.stanza.Stanza;
 import es.udc.pfc.xmpp.stanza.XMPPNamespaces;
 import es.udc.pfc.xmpp.xml.XMLElement;
 
 public final class GameComponent extends AbstractXMPPComponent {
 	
 	private final String XMPP_NS = "urn:xmpp:gamepfc";
+	private static final String DISCO_ITEMS_NS = "http://jabber.org/protocol/disco#items";
+	private static final String RSM_NS = "http://jabber.org/protocol/rsm";
+	
+	private static final List<String> GAME_TYPES = ImmutableList.of("minichess");
+	
+	// TODO: Turn these into configuration options
+	private static final int MAX_OUTSTANDING_IQS = 64;
+	private static final int MAX_PENDING_IQS = 1024;
+	private static final long IQ_TIMEOUT = 10;
+	private static final long IQ_BACKOFF = 1;
+	private static final int IQ_RETRIES = 2;
+	private static final int LOBBY_PAGE_SIZE = 20;
+	private static final int MAX_LOBBY_PAGE_SIZE = 100;
+	private static final long PRESENCE_WINDOW = 200;
+	private static final long CAPTURE_FLUSH_INTERVAL = 1;
+	
+	private final ComponentPool pool;
+	private final ConcurrentMap<String, Room> rooms;
+	private final Sessions sessions;
+	private final Lobby lobby;
+	
+	private final Throttle playThrottle;
+	private final Throttle commandThrottle;
+	private final PendingIQs pendingIQs;
+	private final PresenceBuffer presences;
+	
+	/**
+	 * Held while handling any event, so events are applied, and captured,
+	 * one at a time whichever thread they come from.
+	 */
+	private final Object events;
+	private final EventTimer timer;
+	
+	private StanzaChannel channel;
+	@Nullable
+	private StanzaCapture capture;
+	
+	private volatile boolean online;
+	
+	@Nullable
+	private JID identityJID;
+	@Nullable
+	private JID identityServerJID;
+
+	/**
+	 * Creates a component of the given pool, optionally sending its stanzas
+	 * through the given channel instead of the connection to the server.
+	 */
+	GameComponent(final ComponentPool pool, @Nullable final StanzaChannel channel) {
+		this.pool = pool;
+		rooms = Maps.newConcurrentMap();
+		sessions = pool.getSessions();
+		lobby = pool.getLobby();
+		playThrottle = pool.getPlayThrottle();
+		commandThrottle = pool.getCommandThrottle();
+		events = new Object();
+		timer = new EventTimer() {
+			@Override
+			public Future<?> schedule(final Runnable task, final long delay, final TimeUnit unit) {
+				return pool.getTimer().schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (events) {
+							task.run();
+						}
+					}
+				}, delay, unit);
+			}
+		};
+		pendingIQs = new PendingIQs(new StanzaChannel() {
+			@Override
+			public void send(Stanza stanza) {
+				GameComponent.this.channel.send(stanza);
+			}
+
+			@Override
+			public ListenableFuture<IQ> sendIQ(IQ iq) {
+				return GameComponent.this.channel.sendIQ(iq);
+			}
+		}, timer, new Random(pool.getSeed()), MAX_PENDING_IQS, IQ_TIMEOUT, IQ_BACKOFF, IQ_RETRIES, TimeUnit.SECONDS);
+		presences = new PresenceBuffer();
+		
+		this.channel = channel != null ? channel : new StanzaChannel() {
+			@Override
+			public void send(Stanza stanza) {
+				GameComponent.super.send(stanza);
+			}
+
+			@Override
+			public ListenableFuture<IQ> sendIQ(IQ iq) {
+				return relayResponse(GameComponent.super.sendIQ(iq));
+			}
+		};
+	}
+	
+	/**
+	 * Completes the response to an IQ holding the event lock, so whatever it
+	 * triggers is applied as an event of its own.
+	 */
+	private final ListenableFuture<IQ> relayResponse(final ListenableFuture<IQ> response) {
+		final SettableFuture<IQ> relayed = SettableFuture.create();
+		Futures.addCallback(response, new FutureCallback<IQ>() {
+			@Override
+			public void onSuccess(IQ result) {
+				synchronized (events) {
+					relayed.set(result);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				synchronized (events) {
+					relayed.setException(t);
+				}
+			}
+		});
+		
+		// Let the connection forget about requests that timed out
+		Futures.addCallback(relayed, new FutureCallback<IQ>() {
+			@Override
+			public void onSuccess(IQ result) {
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (relayed.isCancelled()) {
+					response.cancel(false);
+				}
+			}
+		});
+		
+		return relayed;
+	}
 	
-	private final Map<String, Room> rooms;
+	/**
+	 * Starts recording all traffic to the given stream. Must be called
+	 * before the component is connected.
+	 * 
+	 * The capture is flushed every second and closed when the process
+	 * exits, so it survives a crash of the component.
+	 */
+	public final void startCapture(final OutputStream out) throws IOException {
+		final StanzaCapture newCapture = new StanzaCapture(channel, out, pool.getDomain(), pool.getSeed(), pool.getTicker());
+		capture = newCapture;
+		channel = newCapture;
+		
+		pool.getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				newCapture.flush();
+				pool.getTimer().schedule(this, CAPTURE_FLUSH_INTERVAL, TimeUnit.SECONDS);
+			}
+		}, CAPTURE_FLUSH_INTERVAL, TimeUnit.SECONDS);
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("capture-close") {
+			@Override
+			public void run() {
+				try {
+					newCapture.close();
+				} catch (IOException e) {
+					log.severe("Error closing capture: " + e.getMessage());
+				}
+			}
+		});
+	}
 
-	public GameComponent() {
-		rooms = Maps.newHashMap();
+	/**
+	 * Closes the capture, if any. The component keeps running without it.
+	 */
+	public final void stopCapture() throws IOException {
+		if (capture != null) {
+			capture.close();
+		}
+	}
+
+	/**
+	 * Gives the component the addresses it would learn when connecting, as
+	 * when replaying a capture of another one. They are recorded like the
+	 * ones of a connection.
+	 */
+	final void setIdentity(final JID jid, final JID serverJID) {
+		identityJID = jid;
+		identityServerJID = serverJID;
+		
+		if (capture != null) {
+			capture.connected(jid, serverJID);
+		}
+	}
+	
+	@Override
+	public JID getJID() {
+		return identityJID != null ? identityJID : super.getJID();
+	}
+	
+	@Override
+	public JID getServerJID() {
+		return identityServerJID != null ? identityServerJID : super.getServerJID();
 	}
 
 	@Override
@@ -96,22 +302,13 @@ public final class GameComponent extends AbstractXMPPComponent {
 					return;
 				}
 				
-				final Room newRoom;
-
-				if (type.equals("minichess")) {
-					newRoom = new MiniChessRoom(GameComponent.this, JID.jid(getMUCServiceName(), roomID, null));
-				}
-				else {
+				final Room newRoom = pool.getOwner(roomID).createRoom(roomID, type);
+				if (newRoom == null) {
 					log.severe("Unknown game type " + type);
 					future.setException(new Exception("Unknown game type " + type));
 					return;
 				}
 				
-				rooms.put(roomID, newRoom);
-				
-				newRoom.joinRoom();
-				newRoom.configureRoom();
-				
 				future.set(newRoom);
 			}
 
@@ -123,9 +320,112 @@ public final class GameComponent extends AbstractXMPPComponent {
 		
 		return future;
 	}
+	
+	@Nullable
+	private final Room createRoom(final String roomID, final String type) {
+		final Room newRoom;
+
+		if (type.equals("minichess")) {
+			newRoom = new MiniChessRoom(this, JID.jid(getMUCServiceName(), roomID, null));
+		}
+		else {
+			return null;
+		}
+		
+		synchronized (newRoom) {
+			rooms.put(roomID, newRoom);
+			lobby.update(newRoom);
+			
+			newRoom.joinRoom();
+			newRoom.configureRoom();
+		}
+		
+		return newRoom;
+	}
+	
+	@Nullable
+	final Room getRoom(final String node) {
+		return rooms.get(node);
+	}
+	
+	final boolean removeRoom(final Room room) {
+		return rooms.remove(room.getJID().getNode(), room);
+	}
+	
+	final boolean isOnline() {
+		return online;
+	}
+	
+	/**
+	 * Marks the component as connected or not without restoring or leaving
+	 * any room, for tests that have no connection.
+	 */
+	final void setOnline(final boolean online) {
+		this.online = online;
+	}
+	
+	final List<JID> getShardJIDs() {
+		return pool.getShardJIDs();
+	}
+	
+	@Override
+	public void send(final Stanza stanza) {
+		channel.send(stanza);
+	}
+	
+	@Override
+	public ListenableFuture<IQ> sendIQ(final IQ iq) {
+		return pendingIQs.sendIQ(iq);
+	}
+	
+	public final PendingIQs getPendingIQs() {
+		return pendingIQs;
+	}
+	
+	public final PresenceBuffer getPresences() {
+		return presences;
+	}
+	
+	public final Random getRandom() {
+		return pool.getRandom();
+	}
+	
+	public final void saveGame(final DBObject game) {
+		if (!pool.isReplaying()) {
+			Database.saveGame(game);
+		}
+	}
+	
+	/**
+	 * Checks whether an occupant may send another command to its room. The
+	 * limit applies to the user behind the occupant, whatever its nick or
+	 * resource, in all its rooms at once.
+	 */
+	public final Throttle.Result allowCommand(final Room room, final JID occupant) {
+		final JID user = sessions.getUser(room, occupant);
+		return commandThrottle.acquire(user != null ? Sessions.bareJID(user) : occupant);
+	}
+	
+	private final void sendError(final JID user, final String status) {
+		final Message error = new Message();
+		error.setType(Message.Type.chat);
+		error.setFrom(getJID());
+		error.setTo(user);
+		error.addExtension("x", XMPP_NS).addChild("error").setAttribute("status", status);
+		send(error);
+	}
 
 	@Override
 	protected void handleMessage(final Message message) {
+		synchronized (events) {
+			if (capture != null) {
+				capture.received(message);
+			}
+			processMessage(message);
+		}
+	}
+	
+	private final void processMessage(final Message message) {
 		final JID from = message.getFrom();
 		if (from.getDomain().equals(getMUCServiceName())) {
 			final Room room = rooms.get(from.getNode());
@@ -135,30 +435,58 @@ public final class GameComponent extends AbstractXMPPComponent {
 				return;
 			}
 
-			if (message.getType() == Message.Type.groupchat) {
-				room.messageReceived(message);
-			} else if (message.getType() == Message.Type.chat) {
-				room.privateMessageRecieved(message);
+			synchronized (room) {
+				if (message.getType() == Message.Type.groupchat) {
+					room.messageReceived(message);
+				} else if (message.getType() == Message.Type.chat) {
+					room.privateMessageRecieved(message);
+				}
 			}
 		} else {
 			final XMLElement play = message.getExtension("play", XMPP_NS);
 			if (play == null || !play.hasAttribute("game"))
 				return;
 			
-			for (final Room room : rooms.values()) {
+			final Throttle.Result allowed = playThrottle.acquire(Sessions.bareJID(from));
+			if (allowed != Throttle.Result.ALLOWED) {
+				if (allowed == Throttle.Result.REJECTED) {
+					sendError(from, "rate-limited");
+				}
+				return;
+			}
+			
+			// Don't let a user queue into more than one room of each type
+			for (final Room room : sessions.getRooms(from)) {
 				if (!room.getType().equals(play.getAttribute("game")) || !room.joinable())
 					continue;
 
+				log.info("rejoin game: " + room.getJID().toString());
+				room.sendInvitation(from, room.getType());
+				return;
+			}
+			
+			final Room room = lobby.findJoinable(play.getAttribute("game"));
+			if (room != null) {
 				log.info("join game: " + room.getJID().toString());
+				sessions.invited(from, room);
 				room.sendInvitation(from, room.getType());
 				return;
 			}
 
+			// Creating a room takes a unique name and a configuration IQ, so
+			// stop creating them while the MUC service is slow to answer
+			if (pool.getOutstandingIQs() >= MAX_OUTSTANDING_IQS) {
+				log.warning("Too many outstanding IQs, rejecting " + from);
+				sendError(from, "busy");
+				return;
+			}
+
 			// Create a new room and invite the user
 			Futures.addCallback(newRoom(play.getAttribute("game")), new FutureCallback<Room>() {
 				@Override
 				public void onSuccess(Room result) {
 					log.info("new game: " + result.getJID().toString());
+					sessions.invited(from, result);
 					result.sendInvitation(from, result.getType());
 				}
 
@@ -172,79 +500,342 @@ public final class GameComponent extends AbstractXMPPComponent {
 
 	@Override
 	protected void handlePresence(final Presence presence) {
+		synchronized (events) {
+			if (capture != null) {
+				capture.received(presence);
+			}
+			processPresence(presence);
+		}
+	}
+	
+	private final void processPresence(final Presence presence) {
 		final JID from = presence.getFrom();
 		if (from.getDomain().equals(getMUCServiceName())) {
-			// Room presence
+			// Room presence, buffered to apply rejoin bursts at once
 			final String resource = from.getResource();
 			if (resource == null || resource.equals("arbiter"))
 				return;
-
-			final String node = from.getNode();
-
-			final Room room = rooms.get(node);
-			if (room == null) {
-				log.warning(String.format("Room '%s' not found", from.getNode()));
+			
+			bufferPresence(presence);
+		} else if (presence.getType() == Presence.Type.unavailable) {
+			// User went offline, leave its rooms along with the presences the
+			// rooms send, so coming back right away doesn't forfeit its games
+			for (final Map.Entry<Room, JID> session : sessions.removeUser(from).entrySet()) {
+				final GameComponent host = pool.getHost(session.getKey());
+				if (host != null) {
+					final Presence leave = new Presence(Presence.Type.unavailable);
+					leave.setFrom(session.getValue());
+					host.bufferPresence(leave);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Buffers a presence of an occupant of a room hosted here, flushing the
+	 * buffer shortly after the first one.
+	 */
+	final void bufferPresence(final Presence presence) {
+		if (presences.add(presence) && !pool.isReplaying()) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flushPresences();
+				}
+			}, PRESENCE_WINDOW, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Applies the latest presence of each occupant buffered since the last
+	 * flush, so an occupant that left and came back in between is not seen
+	 * leaving.
+	 */
+	final void flushPresences() {
+		// Holding the event lock, so the capture records the flush exactly
+		// where it happens among the other events
+		synchronized (events) {
+			final Map<String, Collection<Presence>> batch = presences.drain();
+			if (batch.isEmpty())
 				return;
+			
+			if (capture != null) {
+				capture.presencesFlushed();
 			}
-
-			if (presence.getType() == null /* available */) {
-				room.occupantJoined(from);
-				// TODO: Get full JID from x.item[jid] ?
-			} else if (presence.getType() == Presence.Type.unavailable) {
-				room.occupantLeft(from);
-				if (room.numPlayers() == 0) {
-					room.leaveRoom();
-					rooms.remove(node);
-					
-					log.info("close game: " + room.getJID().toString());
+			
+			for (final Map.Entry<String, Collection<Presence>> entry : batch.entrySet()) {
+				final String node = entry.getKey();
+				final Room room = rooms.get(node);
+				if (room == null) {
+					log.warning(String.format("Room '%s' not found, dropping %d presences", node, entry.getValue().size()));
+					continue;
+				}
+				
+				synchronized (room) {
+					for (final Presence presence : entry.getValue()) {
+						// Stop once the room closes
+						if (rooms.get(node) != room)
+							break;
+						
+						final JID from = presence.getFrom();
+						final JID user = getRealJID(presence);
+						
+						if (presence.getType() == null /* available */) {
+							room.occupantJoined(from);
+							lobby.update(room);
+							if (user != null) {
+								sessions.joined(user, room, from);
+							}
+						} else if (presence.getType() == Presence.Type.unavailable) {
+							if (user != null) {
+								sessions.left(user, room);
+							}
+							occupantLeft(room, from);
+						}
+					}
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Must be called holding the lock of the room.
+	 */
+	private final void occupantLeft(final Room room, final JID occupant) {
+		room.occupantLeft(occupant);
+		if (room.numPlayers() == 0) {
+			room.leaveRoom();
+			pool.removeRoom(room);
+			sessions.removeRoom(room);
+			lobby.remove(room);
+			
+			log.info("close game: " + room.getJID().toString());
+		} else {
+			lobby.update(room);
+		}
+	}
+	
+	@Nullable
+	private static final JID getRealJID(final Presence presence) {
+		final XMLElement x = presence.getExtension("x", XMPPNamespaces.MUC_USER);
+		if (x == null || !x.hasChild("item"))
+			return null;
+		
+		final String jid = x.getFirstChild("item").getAttribute("jid");
+		return jid != null ? JID.jid(jid) : null;
+	}
+	
 	@Override
 	public void connected() {
 		super.connected();
 		
-		for (final BSONObject object : Database.getOpenGames()) {
-			log.finer("Restarting: " + object.toString());
+		synchronized (events) {
+			online = true;
 			
-			final String type = object.get("type").toString();
-			if ("minichess".equals(type)) {
-				final Room newRoom = new MiniChessRoom(this, object);
-				
-				rooms.put(newRoom.getJID().getNode(), newRoom);
-				newRoom.joinRoom();
-				
-				log.info("Restarted: " + newRoom.getJID());
+			if (capture != null) {
+				capture.connected(getJID(), getServerJID());
 			}
-			else {
-				log.warning("Unknown type " + type);
+			
+			// Also takes the games of components that dropped while no other was connected
+			restoreOpenGames();
+		}
+	}
+	
+	/**
+	 * Restores every open game that isn't running, each one on the connected
+	 * component that should host it now.
+	 */
+	private final void restoreOpenGames() {
+		for (final BSONObject object : Database.getOpenGames()) {
+			final GameComponent owner = pool.getOwner(JID.jid(object.get("room").toString()).getNode());
+			if (owner.isOnline()) {
+				owner.restoreGame(object);
+			}
+		}
+	}
+	
+	final void restoreGame(final BSONObject object) {
+		final String type = object.get("type").toString();
+		if (!"minichess".equals(type)) {
+			log.warning("Unknown type " + type);
+			return;
+		}
+		
+		final Room newRoom = new MiniChessRoom(this, object);
+		
+		// Components may be restoring games at the same time
+		synchronized (pool) {
+			if (pool.findRoom(newRoom.getJID().getNode()) != null)
+				return;
+			
+			log.finer("Restarting: " + object.toString());
+			if (capture != null) {
+				capture.restored(object);
 			}
+			rooms.put(newRoom.getJID().getNode(), newRoom);
+		}
+		
+		synchronized (newRoom) {
+			lobby.update(newRoom);
+			newRoom.joinRoom();
+			
+			// The room is created anew if everyone left it in the meantime
+			newRoom.configureRoom();
 		}
+		
+		log.info("Restarted: " + newRoom.getJID());
 	}
 
 	@Override
 	public void willDisconnect() {
-		for (final Room room : rooms.values()) {
-			room.leaveRoom();
+		synchronized (events) {
+			online = false;
+			
+			// Whatever is pending refers to the rooms being left
+			presences.clear();
+			
+			// The components still connected take the rooms over as they are
+			// now, as waiting rooms are only saved once their game starts
+			final List<BSONObject> hosted = Lists.newArrayList();
+			for (final Room room : rooms.values()) {
+				synchronized (room) {
+					hosted.add(room.getDBObject());
+					room.leaveRoom();
+					lobby.remove(room);
+					sessions.removeRoom(room);
+				}
+			}
+			rooms.clear();
+			
+			for (final BSONObject object : hosted) {
+				final GameComponent owner = pool.getOwner(JID.jid(object.get("room").toString()).getNode());
+				if (owner.isOnline()) {
+					owner.restoreGame(object);
+				} else {
+					// Started games stay open in the database, and are restored
+					// by the first component to connect
+					log.warning("No component connected to take over " + object.get("room"));
+				}
+			}
 		}
+		
 		super.willDisconnect();
 	}
 
 	@Override
 	protected ListenableFuture<IQ> handleIQ(IQ iq) {
+		synchronized (events) {
+			if (capture != null) {
+				capture.received(iq);
+			}
+			
+			final ListenableFuture<IQ> response = processIQ(iq);
+			if (capture != null) {
+				capture.replied(response);
+			}
+			return response;
+		}
+	}
+	
+	private final ListenableFuture<IQ> processIQ(final IQ iq) {
+		if (iq.getType() == IQ.Type.get) {
+			final XMLElement query = iq.getExtension("query", DISCO_ITEMS_NS);
+			if (query != null)
+				return Futures.immediateFuture(getLobbyItems(iq, query));
+		}
+		
 		return Futures.immediateFailedFuture(new Exception("Not implemented"));
 	}
 	
+	/**
+	 * Lists the game types, or the open rooms of a type when a node is given,
+	 * paged with result set management.
+	 */
+	private final IQ getLobbyItems(final IQ iq, final XMLElement query) {
+		final IQ result = new IQ(IQ.Type.result);
+		result.setId(iq.getId());
+		result.setFrom(getJID());
+		result.setTo(iq.getFrom());
+		
+		final XMLElement items = result.addExtension("query", DISCO_ITEMS_NS);
+		final String type = query.getAttribute("node");
+		
+		if (type == null) {
+			for (final String gameType : GAME_TYPES) {
+				final XMLElement item = items.addChild("item");
+				item.setAttribute("jid", getJID().toString());
+				item.setAttribute("node", gameType);
+				item.setAttribute("name", String.format("%s (%d open)", gameType, lobby.count(gameType)));
+			}
+			return result;
+		}
+		
+		items.setAttribute("node", type);
+		
+		int max = LOBBY_PAGE_SIZE;
+		String after = null;
+		if (query.hasChild("set")) {
+			final XMLElement set = query.getFirstChild("set");
+			if (set.hasChild("max")) {
+				try {
+					max = Math.max(0, Math.min(MAX_LOBBY_PAGE_SIZE, Integer.parseInt(set.getFirstChild("max").getText())));
+				} catch (NumberFormatException e) {
+					// Keep the default page size
+				}
+			}
+			if (set.hasChild("after")) {
+				after = set.getFirstChild("after").getText();
+			}
+		}
+		
+		final List<Lobby.Entry> page = lobby.getPage(type, after, max);
+		for (final Lobby.Entry entry : page) {
+			final XMLElement item = items.addChild("item");
+			item.setAttribute("jid", entry.getRoom().getJID().toString());
+			item.setAttribute("name", String.format("%s (%d players, waiting %ds)", type, entry.getPlayers(), lobby.getWaitingTime(entry, TimeUnit.SECONDS)));
+		}
+		
+		final XMLElement set = items.addChild("set");
+		set.setAttribute("xmlns", RSM_NS);
+		if (!page.isEmpty()) {
+			set.addChild("first").setText(page.get(0).getId());
+			set.addChild("last").setText(page.get(page.size() - 1).getId());
+		}
+		set.addChild("count").setText(Integer.toString(lobby.count(type)));
+		
+		return result;
+	}
+	
 	public static void main(String[] args) throws IOException {
 		
-		final ComponentService cs = new ComponentService(new GameComponent(), new InetSocketAddress("localhost", 5275), "games.localhost", "secret");
-
-		if (cs.startAndWait() != State.RUNNING) {
-			System.err.println("Error starting component");
-			return;
+		// TODO: Turn this into a configuration option
+		final ComponentPool pool = new ComponentPool("games.localhost", Integer.getInteger("gameroom.connections", 1));
+		final GameComponent component = pool.getShard(0);
+		
+		final String captureFile = System.getProperty("gameroom.capture");
+		if (captureFile != null) {
+			if (pool.size() > 1) {
+				System.err.println("Capture needs a single connection");
+				return;
+			}
+			component.startCapture(new FileOutputStream(captureFile));
+		}
+		
+		final List<ComponentService> services = Lists.newArrayList();
+		for (int i = 0; i < pool.size(); i++) {
+			final ComponentService service = new ComponentService(pool.getShard(i), new InetSocketAddress("localhost", 5275), ComponentPool.getShardDomain(pool.getDomain(), i), "secret");
+			services.add(service);
+			
+			if (service.startAndWait() != State.RUNNING) {
+				System.err.println("Error starting component " + i);
+				for (final ComponentService started : services) {
+					started.stopAndWait();
+				}
+				return;
+			}
 		}
+		
+		final ComponentService cs = services.get(0);
 
 		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 		while (cs.isRunning()) {
@@ -254,9 +845,23 @@ public final class GameComponent extends AbstractXMPPComponent {
 			}
 
 			if (line.toLowerCase().equals("quit")) {
-				cs.stopAndWait();
+				for (final ComponentService service : services) {
+					service.stopAndWait();
+				}
+				component.stopCapture();
 				break;
 			}
+			
+			if (line.toLowerCase().equals("stats")) {
+				for (int i = 0; i < pool.size(); i++) {
+					final PendingIQs iqs = pool.getShard(i).getPendingIQs();
+					System.out.println(String.format("%d IQs: %d outstanding, %d timed out, %d retried, %d rejected", i,
+							iqs.getOutstanding(), iqs.getTimedOut(), iqs.getRetried(), iqs.getRejected()));
+					final PresenceBuffer buffer = pool.getShard(i).getPresences();
+					System.out.println(String.format("%d presences: %d received, %d applied", i, buffer.getReceived(), buffer.getApplied()));
+				}
+				continue;
+			}
 
 			cs.send(line);
 		}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Directory of the rooms that are waiting for players, grouped by game type.
+ * 
+ * The component updates it whenever a room is created, gains or loses a
+ * player, or closes, so queries never have to look at the full room list.
+ * Rooms are kept in creation order and identified by a sequence number,
+ * which is used as the paging cursor. It is shared by all the components of
+ * a pool, so access is synchronized.
+ */
+public final class Lobby {
+
+	public static final class Entry {
+		private final long id;
+		private final Room room;
+		private final long since;
+		private int players;
+
+		private Entry(final long id, final Room room, final long since) {
+			this.id = id;
+			this.room = room;
+			this.since = since;
+		}
+
+		public final String getId() {
+			return Long.toString(id);
+		}
+
+		public final Room getRoom() {
+			return room;
+		}
+
+		public final int getPlayers() {
+			return players;
+		}
+	}
+
+	private final Ticker ticker;
+	private final Map<String, NavigableMap<Long, Entry>> types;
+	private final Map<Room, Entry> entries;
+
+	private long nextId;
+
+	public Lobby(final Ticker ticker) {
+		this.ticker = checkNotNull(ticker);
+		this.types = Maps.newHashMap();
+		this.entries = Maps.newHashMap();
+	}
+
+	/**
+	 * Adds, updates or removes a room depending on whether it is joinable.
+	 */
+	public final synchronized void update(final Room room) {
+		if (!room.joinable()) {
+			remove(room);
+			return;
+		}
+
+		Entry entry = entries.get(room);
+		if (entry == null) {
+			entry = new Entry(nextId++, room, ticker.read());
+			entries.put(room, entry);
+			getType(room.getType()).put(entry.id, entry);
+		}
+		entry.players = room.numPlayers();
+	}
+
+	public final synchronized void remove(final Room room) {
+		final Entry entry = entries.remove(room);
+		if (entry != null) {
+			getType(room.getType()).remove(entry.id);
+		}
+	}
+
+	/**
+	 * Finds the joinable room of the given type that has been waiting longest.
+	 */
+	@Nullable
+	public final synchronized Room findJoinable(final String type) {
+		final NavigableMap<Long, Entry> rooms = types.get(type);
+		if (rooms == null || rooms.isEmpty())
+			return null;
+
+		return rooms.firstEntry().getValue().room;
+	}
+
+	public final synchronized int count(final String type) {
+		final NavigableMap<Long, Entry> rooms = types.get(type);
+		return rooms != null ? rooms.size() : 0;
+	}
+
+	/**
+	 * Lists up to max rooms of a type, starting after the entry with the given id.
+	 */
+	public final synchronized List<Entry> getPage(final String type, @Nullable final String after, final int max) {
+		NavigableMap<Long, Entry> rooms = types.get(type);
+		if (rooms == null)
+			return Collections.emptyList();
+
+		if (after != null) {
+			try {
+				rooms = rooms.tailMap(Long.parseLong(after), false);
+			} catch (NumberFormatException e) {
+				return Collections.emptyList();
+			}
+		}
+
+		final List<Entry> page = Lists.newArrayListWithCapacity(max);
+		for (final Entry entry : rooms.values()) {
+			if (page.size() == max)
+				break;
+			page.add(entry);
+		}
+		return page;
+	}
+
+	public final synchronized long getWaitingTime(final Entry entry, final TimeUnit unit) {
+		return unit.convert(ticker.read() - entry.since, TimeUnit.NANOSECONDS);
+	}
+
+	private final NavigableMap<Long, Entry> getType(final String type) {
+		NavigableMap<Long, Entry> rooms = types.get(type);
+		if (rooms == null) {
+			rooms = Maps.newTreeMap();
+			types.put(type, rooms);
+		}
+		return rooms;
+	}
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.BSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Exports finished games in PGN format, converting chunks of games in
+ * parallel and writing them in order to a gzip compressed stream.
+ * 
+ * Moves are written in coordinate notation ("a2a3"), as the stored games
+ * don't keep enough information to produce SAN.
+ */
+public final class PGNExporter {
+
+	private static final int CHUNK_SIZE = 1000;
+	private static final int LINE_LENGTH = 79;
+
+	private final int threads;
+
+	public PGNExporter(final int threads) {
+		checkArgument(threads > 0, "threads must be positive");
+		this.threads = threads;
+	}
+
+	/**
+	 * Writes every game to the given stream, which is closed afterwards.
+	 *
+	 * Only a few chunks are converted at once, so memory use doesn't depend
+	 * on the number of games.
+	 *
+	 * @return the number of games exported
+	 */
+	public final long export(final Iterable<? extends BSONObject> games, final OutputStream out) throws IOException {
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(out), Charsets.UTF_8));
+		final Queue<Future<String>> pending = Lists.newLinkedList();
+		long count = 0;
+
+		try {
+			List<BSONObject> chunk = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+			for (final BSONObject game : games) {
+				chunk.add(game);
+				count++;
+
+				if (chunk.size() == CHUNK_SIZE) {
+					pending.add(executor.submit(new ChunkConverter(chunk)));
+					chunk = Lists.newArrayListWithCapacity(CHUNK_SIZE);
+
+					if (pending.size() >= threads * 2) {
+						writer.write(getResult(pending.remove()));
+					}
+				}
+			}
+
+			if (!chunk.isEmpty()) {
+				pending.add(executor.submit(new ChunkConverter(chunk)));
+			}
+
+			while (!pending.isEmpty()) {
+				writer.write(getResult(pending.remove()));
+			}
+		} finally {
+			executor.shutdownNow();
+			writer.close();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Writes every game of a cursor to the given stream, closing both
+	 * afterwards even if the export fails.
+	 */
+	public final long export(final DBCursor games, final OutputStream out) throws IOException {
+		try {
+			return export((Iterable<DBObject>) games, out);
+		} finally {
+			games.close();
+		}
+	}
+
+	private static final String getResult(final Future<String> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting games", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error exporting games", e.getCause());
+		}
+	}
+
+	private static final class ChunkConverter implements Callable<String> {
+
+		private final List<BSONObject> games;
+		private final DateFormat dateFormat;
+
+		private ChunkConverter(final List<BSONObject> games) {
+			this.games = games;
+			this.dateFormat = new SimpleDateFormat("yyyy.MM.dd");
+		}
+
+		@Override
+		public String call() throws Exception {
+			final StringBuilder sb = new StringBuilder(games.size() * 512);
+			for (final BSONObject game : games) {
+				appendGame(sb, game);
+			}
+			return sb.toString();
+		}
+
+		private final void appendGame(final StringBuilder sb, final BSONObject game) {
+			final List<Object> players = (List<Object>) game.get("players");
+			final String result = getPGNResult(game.get("winner"));
+
+			appendTag(sb, "Event", String.valueOf(game.get("type")));
+			appendTag(sb, "Site", String.valueOf(game.get("room")));
+			appendTag(sb, "Date", game.get("started") != null ? dateFormat.format((Date) game.get("started")) : "????.??.??");
+			appendTag(sb, "Round", "-");
+			appendTag(sb, "White", players != null && players.size() > 0 ? players.get(0).toString() : "?");
+			appendTag(sb, "Black", players != null && players.size() > 1 ? players.get(1).toString() : "?");
+			appendTag(sb, "Result", result);
+			sb.append('\n');
+
+			final List<Object> moves = (List<Object>) game.get("moves");
+			int lineStart = sb.length();
+			int ply = 0;
+			if (moves != null) {
+				for (final Object moveObj : moves) {
+					final BSONObject move = (BSONObject) moveObj;
+
+					final String token = (ply % 2 == 0 ? (ply / 2 + 1) + ". " : "") + move.get("from") + move.get("to");
+					lineStart = appendToken(sb, token, lineStart);
+					ply++;
+				}
+			}
+			appendToken(sb, result, lineStart);
+			sb.append("\n\n");
+		}
+
+		private static final void appendTag(final StringBuilder sb, final String name, final String value) {
+			sb.append('[').append(name).append(" \"");
+			sb.append(value.replace("\\", "\\\\").replace("\"", "\\\""));
+			sb.append("\"]\n");
+		}
+
+		private static final int appendToken(final StringBuilder sb, final String token, final int lineStart) {
+			if (sb.length() == lineStart) {
+				sb.append(token);
+				return lineStart;
+			}
+
+			if (sb.length() - lineStart + 1 + token.length() > LINE_LENGTH) {
+				sb.append('\n');
+				sb.append(token);
+				return sb.length() - token.length();
+			}
+
+			sb.append(' ').append(token);
+			return lineStart;
+		}
+
+		private static final String getPGNResult(final Object winner) {
+			if (winner == null)
+				return "*";
+			else if ("WHITE".equals(winner.toString()))
+				return "1-0";
+			else if ("BLACK".equals(winner.toString()))
+				return "0-1";
+
+			return "1/2-1/2";
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: PGNExporter <output.pgn.gz>");
+			return;
+		}
+
+		final PGNExporter exporter = new PGNExporter(Runtime.getRuntime().availableProcessors());
+		final long count = exporter.export(Database.getFinishedGames(CHUNK_SIZE), new BufferedOutputStream(new FileOutputStream(args[0])));
+
+		System.out.println("Exported " + count + " games");
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+
+/**
+ * Tracks the IQs sent by the component, failing them when no response
+ * arrives in time.
+ * 
+ * Get requests are idempotent, so they are sent again after a jittered
+ * exponential backoff before giving up. At most maxPending requests may be
+ * waiting at once; further requests fail right away.
+ * 
+ * Deadlines and retries run on the timer and jitter of the component, so a
+ * replayed component times out exactly as the captured one did.
+ */
+public final class PendingIQs {
+
+	private final Logger log = Logger.getLogger(getClass().getSimpleName());
+
+	private final StanzaChannel channel;
+	private final EventTimer timer;
+	private final Random jitter;
+
+	private final int maxPending;
+	private final long timeout;
+	private final long backoff;
+	private final int maxRetries;
+
+	private final AtomicInteger outstanding;
+	private final AtomicLong timedOut;
+	private final AtomicLong retried;
+	private final AtomicLong rejected;
+
+	public PendingIQs(final StanzaChannel channel, final EventTimer timer, final Random jitter, final int maxPending, final long timeout, final long backoff, final int maxRetries, final TimeUnit unit) {
+		this.channel = checkNotNull(channel);
+		this.timer = checkNotNull(timer);
+		this.jitter = checkNotNull(jitter);
+
+		this.maxPending = maxPending;
+		this.timeout = unit.toNanos(timeout);
+		this.backoff = unit.toNanos(backoff);
+		this.maxRetries = maxRetries;
+
+		this.outstanding = new AtomicInteger();
+		this.timedOut = new AtomicLong();
+		this.retried = new AtomicLong();
+		this.rejected = new AtomicLong();
+	}
+
+	public final ListenableFuture<IQ> sendIQ(final IQ iq) {
+		if (outstanding.incrementAndGet() > maxPending) {
+			outstanding.decrementAndGet();
+			rejected.incrementAndGet();
+			return Futures.immediateFailedFuture(new Exception("Too many pending IQs"));
+		}
+
+		final SettableFuture<IQ> result = SettableFuture.create();
+		attempt(iq, result, 0);
+		return result;
+	}
+
+	/**
+	 * Number of requests waiting for a response.
+	 */
+	public final int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Number of attempts that got no response in time, including retried ones.
+	 */
+	public final long getTimedOut() {
+		return timedOut.get();
+	}
+
+	public final long getRetried() {
+		return retried.get();
+	}
+
+	public final long getRejected() {
+		return rejected.get();
+	}
+
+	private final void attempt(final IQ iq, final SettableFuture<IQ> result, final int retry) {
+		final ListenableFuture<IQ> response = channel.sendIQ(iq);
+
+		final Future<?> deadline = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				// Cancelling lets the connection forget about the request
+				if (!response.cancel(false))
+					return;
+
+				timedOut.incrementAndGet();
+				if (iq.getType() == IQ.Type.get && retry < maxRetries) {
+					retried.incrementAndGet();
+					timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							attempt(iq, result, retry + 1);
+						}
+					}, getBackoff(retry), TimeUnit.NANOSECONDS);
+				} else {
+					log.warning(String.format("IQ timed out after %d attempts (%d outstanding, %d timed out)", retry + 1, outstanding.get() - 1, timedOut.get()));
+					complete(result, null, new TimeoutException("IQ timed out"));
+				}
+			}
+		}, timeout, TimeUnit.NANOSECONDS);
+
+		Futures.addCallback(response, new FutureCallback<IQ>() {
+			@Override
+			public void onSuccess(IQ value) {
+				deadline.cancel(false);
+				complete(result, value, null);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				deadline.cancel(false);
+				if (!response.isCancelled()) {
+					complete(result, null, t);
+				}
+			}
+		});
+	}
+
+	private final void complete(final SettableFuture<IQ> result, final IQ value, final Throwable t) {
+		if (t == null ? result.set(value) : result.setException(t)) {
+			outstanding.decrementAndGet();
+		}
+	}
+
+	private final long getBackoff(final int retry) {
+		final long delay = backoff << retry;
+		return delay / 2 + (long) (jitter.nextDouble() * delay / 2);
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Presence;
+
+/**
+ * Collects room occupant presences between flushes, keeping only the latest
+ * presence of each occupant.
+ * 
+ * An occupant that leaves and comes back before the buffer is drained is
+ * seen as never having left, and one that comes and goes as never having
+ * joined. Rooms and occupants are drained in the order they first appeared,
+ * except that the joins of each room come before its leaves, so a room isn't
+ * closed by a leave while someone else is joining it.
+ */
+public final class PresenceBuffer {
+
+	private Map<String, Map<JID, Presence>> rooms;
+
+	private long received;
+	private long applied;
+
+	public PresenceBuffer() {
+		rooms = Maps.newLinkedHashMap();
+	}
+
+	/**
+	 * Buffers a presence from a room occupant.
+	 *
+	 * @return true if the buffer was empty, so a flush should be scheduled
+	 */
+	public final synchronized boolean add(final Presence presence) {
+		final boolean first = rooms.isEmpty();
+		final JID from = presence.getFrom();
+
+		Map<JID, Presence> occupants = rooms.get(from.getNode());
+		if (occupants == null) {
+			occupants = Maps.newLinkedHashMap();
+			rooms.put(from.getNode(), occupants);
+		}
+
+		if (occupants.put(from, presence) == null) {
+			applied++;
+		}
+		received++;
+
+		return first;
+	}
+
+	/**
+	 * Empties the buffer.
+	 *
+	 * @return the latest presence of each occupant, grouped by room node,
+	 * joins first
+	 */
+	public final synchronized Map<String, Collection<Presence>> drain() {
+		if (rooms.isEmpty())
+			return Collections.emptyMap();
+
+		final Map<String, Collection<Presence>> result = Maps.newLinkedHashMap();
+		for (final Map.Entry<String, Map<JID, Presence>> room : rooms.entrySet()) {
+			final List<Presence> joins = Lists.newArrayList();
+			final List<Presence> others = Lists.newArrayList();
+			for (final Presence presence : room.getValue().values()) {
+				if (presence.getType() == null /* available */) {
+					joins.add(presence);
+				} else {
+					others.add(presence);
+				}
+			}
+			joins.addAll(others);
+			result.put(room.getKey(), joins);
+		}
+		rooms = Maps.newLinkedHashMap();
+		return result;
+	}
+
+	public final synchronized void clear() {
+		rooms.clear();
+	}
+
+	public final synchronized long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Number of presences left after coalescing.
+	 */
+	public final synchronized long getApplied() {
+		return applied;
+	}
+
+}
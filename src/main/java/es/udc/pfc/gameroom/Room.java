@@ -17,6 +17,7 @@
 package es.udc.pfc.gameroom;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.mongodb.DBObject;
 
 import es.udc.pfc.xmpp.stanza.JID;
 import es.udc.pfc.xmpp.stanza.Message;
@@ -47,4 +48,10 @@ public interface Room {
 
 	void privateMessageRecieved(Message message);
 
+	/**
+	 * Builds the document the room is saved as, from which it can be
+	 * restored.
+	 */
+	DBObject getDBObject();
+
 }
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Table;
+
+import es.udc.pfc.xmpp.stanza.JID;
+
+/**
+ * Index of the rooms each user has been invited to or is playing in.
+ * 
+ * Users are stored by their full JID, together with the occupant JID they
+ * use inside each room once they have joined it, so a resource going
+ * offline doesn't affect the games played from other resources, while the
+ * rooms of a user are looked up across all of its resources. It is shared
+ * by all the components of a pool, so access is synchronized.
+ */
+public final class Sessions {
+
+	private static final class Session {
+		@Nullable
+		private JID occupant;
+	}
+
+	private final Table<JID, Room, Session> sessions;
+	private final SetMultimap<JID, JID> resources;
+
+	public Sessions() {
+		sessions = HashBasedTable.create();
+		resources = HashMultimap.create();
+	}
+
+	public static final JID bareJID(final JID user) {
+		return JID.jid(user.getDomain(), user.getNode(), null);
+	}
+
+	public final synchronized void invited(final JID user, final Room room) {
+		getSession(user, room);
+	}
+
+	public final synchronized void joined(final JID user, final Room room, final JID occupant) {
+		getSession(user, room).occupant = occupant;
+	}
+
+	public final synchronized void left(final JID user, final Room room) {
+		sessions.remove(user, room);
+		removeResource(user);
+	}
+
+	/**
+	 * Finds the user behind an occupant of a room.
+	 */
+	@Nullable
+	public final synchronized JID getUser(final Room room, final JID occupant) {
+		for (final Map.Entry<JID, Session> session : sessions.column(room).entrySet()) {
+			if (occupant.equals(session.getValue().occupant))
+				return session.getKey();
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the rooms of a user from any of its resources.
+	 */
+	public final synchronized Set<Room> getRooms(final JID user) {
+		final ImmutableSet.Builder<Room> rooms = ImmutableSet.builder();
+		for (final JID resource : resources.get(bareJID(user))) {
+			rooms.addAll(sessions.row(resource).keySet());
+		}
+		return rooms.build();
+	}
+
+	/**
+	 * Forgets every session of a user resource.
+	 *
+	 * @return the occupant JID of the user in each room it had joined
+	 */
+	public final synchronized Map<Room, JID> removeUser(final JID user) {
+		final Map<Room, Session> row = sessions.row(user);
+		final Map<Room, JID> occupants = Maps.newHashMap();
+		for (final Map.Entry<Room, Session> session : row.entrySet()) {
+			if (session.getValue().occupant != null) {
+				occupants.put(session.getKey(), session.getValue().occupant);
+			}
+		}
+		row.clear();
+		removeResource(user);
+		return occupants;
+	}
+
+	public final synchronized void removeRoom(final Room room) {
+		final Set<JID> users = ImmutableSet.copyOf(sessions.column(room).keySet());
+		sessions.column(room).clear();
+		for (final JID user : users) {
+			removeResource(user);
+		}
+	}
+
+	private final Session getSession(final JID user, final Room room) {
+		Session session = sessions.get(user, room);
+		if (session == null) {
+			session = new Session();
+			sessions.put(user, room, session);
+			resources.put(bareJID(user), user);
+		}
+		return session;
+	}
+
+	private final void removeResource(final JID user) {
+		if (!sessions.containsRow(user)) {
+			resources.remove(bareJID(user), user);
+		}
+	}
+
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import org.bson.BSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.mongodb.util.JSON;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Stanza;
+
+/**
+ * Records the traffic of a component to a binary log, which can be fed back
+ * to a new component with {@link StanzaReplayer}.
+ * 
+ * The log is written uncompressed so that flushing it regularly keeps all
+ * but the last moments of a crashed component; it may be gzipped afterwards.
+ * 
+ * The log starts with a header holding the domain and random seed of the
+ * pool of the component, followed by one record per stanza: its kind, the
+ * nanoseconds elapsed since the capture started and its XML, as given by
+ * toString(). Responses to outbound IQs, or their timeouts, refer to their
+ * request by its sequence number, and buffered room presences are marked
+ * when they are applied. Responses to inbound IQs are recorded as outbound
+ * stanzas, or as a description of the error when they fail, since the
+ * connection sends them on behalf of the component. The addresses of the
+ * component are recorded when it connects, so the replayed one routes and
+ * addresses its stanzas the same way.
+ */
+public final class StanzaCapture implements StanzaChannel {
+
+	static final int MAGIC = 0x47524346; // "GRCF"
+	static final int VERSION = 1;
+
+	static final byte INBOUND = 1;
+	static final byte OUTBOUND = 2;
+	static final byte IQ_REQUEST = 3;
+	static final byte IQ_RESPONSE = 4;
+	static final byte IQ_FAILURE = 5;
+	static final byte RESTORED = 6;
+	static final byte PRESENCES_FLUSHED = 7;
+	static final byte CONNECTED = 8;
+	static final byte IQ_TIMEOUT = 9;
+
+	private final Logger log = Logger.getLogger(getClass().getSimpleName());
+
+	private final StanzaChannel channel;
+	private final DataOutputStream out;
+	private final Ticker ticker;
+	private final long start;
+
+	private int iqSequence;
+	private boolean failed;
+	private boolean closed;
+
+	public StanzaCapture(final StanzaChannel channel, final OutputStream out, final String domain, final long seed, final Ticker ticker) throws IOException {
+		this.channel = checkNotNull(channel);
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.ticker = checkNotNull(ticker);
+		this.start = ticker.read();
+
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+		this.out.writeUTF(domain);
+		this.out.writeLong(seed);
+	}
+
+	/**
+	 * Records the addresses of the component, which it only learns once
+	 * connected.
+	 */
+	public final void connected(final JID jid, final JID serverJID) {
+		write(CONNECTED, 0, jid + " " + serverJID);
+	}
+
+	public final void received(final Stanza stanza) {
+		write(INBOUND, 0, stanza.toString());
+	}
+
+	public final void restored(final BSONObject game) {
+		write(RESTORED, 0, JSON.serialize(game));
+	}
+
+	public final void presencesFlushed() {
+		write(PRESENCES_FLUSHED, 0, "");
+	}
+
+	/**
+	 * Records the response of the component to an inbound IQ once it's
+	 * ready.
+	 */
+	public final void replied(final ListenableFuture<IQ> response) {
+		Futures.addCallback(response, new FutureCallback<IQ>() {
+			@Override
+			public void onSuccess(IQ result) {
+				write(OUTBOUND, 0, result.toString());
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				write(OUTBOUND, 0, describeFailure(t));
+			}
+		});
+	}
+
+	/**
+	 * Describes a failed response to an inbound IQ, which the connection
+	 * turns into an error IQ.
+	 */
+	static final String describeFailure(final Throwable t) {
+		return "error: " + t.getMessage();
+	}
+
+	@Override
+	public final void send(final Stanza stanza) {
+		write(OUTBOUND, 0, stanza.toString());
+		channel.send(stanza);
+	}
+
+	@Override
+	public final ListenableFuture<IQ> sendIQ(final IQ iq) {
+		final int sequence;
+		synchronized (this) {
+			sequence = iqSequence++;
+			write(IQ_REQUEST, sequence, iq.toString());
+		}
+
+		final ListenableFuture<IQ> response = channel.sendIQ(iq);
+		Futures.addCallback(response, new FutureCallback<IQ>() {
+			@Override
+			public void onSuccess(IQ result) {
+				write(IQ_RESPONSE, sequence, result.toString());
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// Requests are only cancelled when their deadline passes
+				if (response.isCancelled()) {
+					write(IQ_TIMEOUT, sequence, "");
+				} else {
+					write(IQ_FAILURE, sequence, String.valueOf(t.getMessage()));
+				}
+			}
+		});
+
+		return response;
+	}
+
+	public final synchronized void flush() {
+		if (failed || closed)
+			return;
+
+		try {
+			out.flush();
+		} catch (IOException e) {
+			log.severe("Error writing capture, stopping: " + e.getMessage());
+			failed = true;
+		}
+	}
+
+	/**
+	 * Closes the log; anything recorded afterwards is ignored.
+	 */
+	public final synchronized void close() throws IOException {
+		if (closed)
+			return;
+
+		closed = true;
+		out.close();
+	}
+
+	private final synchronized void write(final byte kind, final int sequence, final String data) {
+		if (failed || closed)
+			return;
+
+		try {
+			final byte[] bytes = data.getBytes(Charsets.UTF_8);
+			out.writeByte(kind);
+			out.writeLong(ticker.read() - start);
+			if (kind == IQ_REQUEST || kind == IQ_RESPONSE || kind == IQ_FAILURE || kind == IQ_TIMEOUT) {
+				out.writeInt(sequence);
+			}
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} catch (IOException e) {
+			// Never let the capture break the component
+			log.severe("Error writing capture, stopping: " + e.getMessage());
+			failed = true;
+		}
+	}
+
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.bson.BSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.mongodb.util.JSON;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Message;
+import es.udc.pfc.xmpp.stanza.Presence;
+import es.udc.pfc.xmpp.stanza.Stanza;
+import es.udc.pfc.xmpp.xml.XMLElement;
+
+/**
+ * Feeds a traffic capture to a new component and checks that it sends the
+ * same stanzas, in the same order, as the captured one.
+ * 
+ * Replies to outbound IQs are delivered at the point they were captured, and
+ * the component sees the captured time through its ticker and timer, so the
+ * replay is deterministic. Delayed tasks such as IQ deadlines run on the
+ * replay thread once the capture reaches their time. Games are not saved to
+ * the database while replaying.
+ */
+public final class StanzaReplayer implements StanzaChannel {
+
+	private static final int MAX_REPORTED_MISMATCHES = 10;
+
+	private final Logger log = Logger.getLogger(getClass().getSimpleName());
+
+	private final XMLInputFactory xmlFactory;
+	private final Queue<String> sent;
+	private final Map<Integer, SettableFuture<IQ>> pendingIQs;
+	private final Ticker ticker;
+	private final TickerTimer timer;
+
+	private long now;
+	private int iqSequence;
+	private int mismatches;
+
+	public StanzaReplayer() {
+		xmlFactory = XMLInputFactory.newInstance();
+		sent = Lists.newLinkedList();
+		pendingIQs = Maps.newHashMap();
+		ticker = new Ticker() {
+			@Override
+			public long read() {
+				return now;
+			}
+		};
+		timer = new TickerTimer(ticker);
+	}
+
+	/**
+	 * Replays a capture.
+	 *
+	 * @param realTime whether to wait between stanzas as in the capture, or
+	 * replay them as fast as possible
+	 * @return the number of stanzas whose output didn't match the capture
+	 */
+	public final int replay(final InputStream input, final boolean realTime) throws IOException, InterruptedException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(openCapture(input)));
+		try {
+			if (in.readInt() != StanzaCapture.MAGIC || in.readInt() != StanzaCapture.VERSION)
+				throw new IOException("Not a capture file");
+
+			final String domain = in.readUTF();
+			final GameComponent component = new ComponentPool(domain, 1, in.readLong(), ticker, timer, this, true).getShard(0);
+			final long start = System.nanoTime();
+			long records = 0;
+
+			while (true) {
+				final byte kind;
+				try {
+					kind = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+
+				final int sequence;
+				final String data;
+				try {
+					now = in.readLong();
+					sequence = kind == StanzaCapture.IQ_REQUEST || kind == StanzaCapture.IQ_RESPONSE || kind == StanzaCapture.IQ_FAILURE || kind == StanzaCapture.IQ_TIMEOUT ? in.readInt() : 0;
+					final byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					data = new String(bytes, Charsets.UTF_8);
+				} catch (EOFException e) {
+					// The captured component died while writing this record
+					log.warning("Capture truncated after " + records + " records");
+					break;
+				}
+				records++;
+
+				if (realTime) {
+					final long wait = now - (System.nanoTime() - start);
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+
+				timer.runDue();
+
+				switch (kind) {
+				case StanzaCapture.CONNECTED:
+					final int space = data.indexOf(' ');
+					component.setIdentity(JID.jid(data.substring(0, space)), JID.jid(data.substring(space + 1)));
+					break;
+				case StanzaCapture.INBOUND:
+					dispatch(component, parseStanza(data));
+					break;
+				case StanzaCapture.RESTORED:
+					component.restoreGame((BSONObject) JSON.parse(data));
+					break;
+				case StanzaCapture.PRESENCES_FLUSHED:
+					component.flushPresences();
+					break;
+				case StanzaCapture.OUTBOUND:
+				case StanzaCapture.IQ_REQUEST:
+					check(data, sent.poll());
+					break;
+				case StanzaCapture.IQ_RESPONSE:
+					getPendingIQ(sequence).set((IQ) parseStanza(data));
+					break;
+				case StanzaCapture.IQ_FAILURE:
+					getPendingIQ(sequence).setException(new Exception(data));
+					break;
+				case StanzaCapture.IQ_TIMEOUT:
+					// The replayed deadline has passed by now, so it was cancelled already
+					if (!getPendingIQ(sequence).isCancelled()) {
+						check("timeout of IQ " + sequence, "no timeout");
+					}
+					break;
+				default:
+					throw new IOException("Unknown record " + kind);
+				}
+			}
+
+			while (!sent.isEmpty()) {
+				check(null, sent.poll());
+			}
+
+			final long elapsed = System.nanoTime() - start;
+			log.info(String.format("Replayed %d records in %d ms (%.0f records/s), %d mismatches", records,
+					TimeUnit.NANOSECONDS.toMillis(elapsed), records * 1e9 / Math.max(elapsed, 1), mismatches));
+
+			return mismatches;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads captures both as written and gzipped afterwards.
+	 */
+	private static final InputStream openCapture(final InputStream input) throws IOException {
+		final PushbackInputStream pushback = new PushbackInputStream(input, 2);
+		final byte[] magic = new byte[2];
+		final int read = pushback.read(magic);
+		if (read > 0) {
+			pushback.unread(magic, 0, read);
+		}
+
+		if (read == 2 && (magic[0] & 0xff | (magic[1] & 0xff) << 8) == GZIPInputStream.GZIP_MAGIC)
+			return new GZIPInputStream(pushback);
+
+		return pushback;
+	}
+
+	@Override
+	public final void send(final Stanza stanza) {
+		sent.add(stanza.toString());
+	}
+
+	@Override
+	public final ListenableFuture<IQ> sendIQ(final IQ iq) {
+		final SettableFuture<IQ> future = SettableFuture.create();
+		pendingIQs.put(iqSequence++, future);
+		sent.add(iq.toString());
+		return future;
+	}
+
+	private final SettableFuture<IQ> getPendingIQ(final int sequence) throws IOException {
+		final SettableFuture<IQ> future = pendingIQs.remove(sequence);
+		if (future == null)
+			throw new IOException("Response to unknown IQ " + sequence);
+
+		return future;
+	}
+
+	private final void check(final String expected, final String actual) {
+		if (expected != null && expected.equals(actual))
+			return;
+
+		if (++mismatches <= MAX_REPORTED_MISMATCHES) {
+			log.warning("Expected: " + expected + "\n  but sent: " + actual);
+		}
+	}
+
+	private final void dispatch(final GameComponent component, final Stanza stanza) {
+		if (stanza instanceof Message) {
+			component.handleMessage((Message) stanza);
+		} else if (stanza instanceof Presence) {
+			component.handlePresence((Presence) stanza);
+		} else if (stanza instanceof IQ) {
+			// The response is checked like any other stanza sent
+			Futures.addCallback(component.handleIQ((IQ) stanza), new FutureCallback<IQ>() {
+				@Override
+				public void onSuccess(IQ result) {
+					sent.add(result.toString());
+				}
+
+				@Override
+				public void onFailure(Throwable t) {
+					sent.add(StanzaCapture.describeFailure(t));
+				}
+			});
+		}
+	}
+
+	private final Stanza parseStanza(final String xml) throws IOException {
+		try {
+			final XMLStreamReader reader = xmlFactory.createXMLStreamReader(new StringReader(xml));
+			reader.nextTag();
+
+			final String name = reader.getLocalName();
+			final String type = reader.getAttributeValue(null, "type");
+			final Stanza stanza;
+
+			if (name.equals("message")) {
+				final Message message = new Message();
+				if (type != null) {
+					message.setType(Message.Type.valueOf(type));
+				}
+				stanza = message;
+			} else if (name.equals("presence")) {
+				stanza = type != null ? new Presence(Presence.Type.valueOf(type)) : new Presence();
+			} else if (name.equals("iq")) {
+				stanza = new IQ(IQ.Type.valueOf(type));
+			} else {
+				throw new IOException("Unknown stanza " + name);
+			}
+
+			final String from = reader.getAttributeValue(null, "from");
+			if (from != null) {
+				stanza.setFrom(JID.jid(from));
+			}
+			final String to = reader.getAttributeValue(null, "to");
+			if (to != null) {
+				stanza.setTo(JID.jid(to));
+			}
+			final String id = reader.getAttributeValue(null, "id");
+			if (id != null) {
+				stanza.setId(id);
+			}
+
+			final String stanzaNS = Strings.nullToEmpty(reader.getNamespaceURI());
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				final String ns = Strings.nullToEmpty(reader.getNamespaceURI());
+				if (!ns.equals(stanzaNS)) {
+					readElement(reader, stanza.addExtension(reader.getLocalName(), ns));
+				} else if (stanza instanceof Message && reader.getLocalName().equals("subject")) {
+					((Message) stanza).setSubject(reader.getElementText());
+				} else {
+					// Plain children (body, error...) are never read by the component
+					skipElement(reader);
+				}
+			}
+
+			return stanza;
+		} catch (XMLStreamException e) {
+			throw new IOException("Invalid stanza: " + xml, e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid stanza: " + xml, e);
+		}
+	}
+
+	private static final void readElement(final XMLStreamReader reader, final XMLElement element) throws XMLStreamException {
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+		}
+
+		final StringBuilder text = new StringBuilder();
+		while (true) {
+			switch (reader.next()) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+				text.append(reader.getText());
+				break;
+			case XMLStreamConstants.START_ELEMENT:
+				readElement(reader, element.addChild(reader.getLocalName()));
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (text.toString().trim().length() > 0) {
+					element.setText(text.toString());
+				}
+				return;
+			}
+		}
+	}
+
+	private static final void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: StanzaReplayer <capture> [--realtime]");
+			return;
+		}
+
+		final boolean realTime = args.length > 1 && args[1].equals("--realtime");
+		final int mismatches = new StanzaReplayer().replay(new FileInputStream(args[0]), realTime);
+
+		System.exit(mismatches == 0 ? 0 : 1);
+	}
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import es.udc.pfc.xmpp.stanza.JID;
+
+/**
+ * Token bucket rate limiter keyed by sender JID.
+ * 
+ * Idle buckets expire once they would have refilled completely, so dropping
+ * them never changes the outcome of a later request. Only the first request
+ * rejected in a row is reported as such, so callers can answer it without
+ * answering every request of a flood.
+ */
+public final class Throttle {
+
+	public static enum Result {
+		ALLOWED,
+		REJECTED,
+		DROPPED
+	}
+
+	private static final class Bucket {
+		private double tokens;
+		private long lastRefill;
+		private boolean limited;
+
+		private Bucket(final double tokens, final long now) {
+			this.tokens = tokens;
+			this.lastRefill = now;
+		}
+	}
+
+	private final double tokensPerNano;
+	private final double burst;
+	private final Ticker ticker;
+	private final LoadingCache<JID, Bucket> buckets;
+
+	public Throttle(final double tokensPerSecond, final int burst, final long maxEntries, final Ticker ticker) {
+		checkArgument(tokensPerSecond > 0, "tokensPerSecond must be positive");
+		checkArgument(burst > 0, "burst must be positive");
+
+		this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.ticker = checkNotNull(ticker);
+		this.buckets = CacheBuilder.newBuilder()
+				.maximumSize(maxEntries)
+				.expireAfterAccess((long) Math.ceil(burst / tokensPerNano), TimeUnit.NANOSECONDS)
+				.ticker(ticker)
+				.build(new CacheLoader<JID, Bucket>() {
+					@Override
+					public Bucket load(JID key) {
+						return new Bucket(Throttle.this.burst, Throttle.this.ticker.read());
+					}
+				});
+	}
+
+	/**
+	 * Takes a token from the bucket of the given user.
+	 *
+	 * @return REJECTED if the user has just exceeded its rate, or DROPPED if
+	 * it had already exceeded it on its previous request
+	 */
+	public final Result acquire(final JID user) {
+		final Bucket bucket = buckets.getUnchecked(user);
+		final long now = ticker.read();
+
+		synchronized (bucket) {
+			bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) * tokensPerNano);
+			bucket.lastRefill = now;
+
+			if (bucket.tokens < 1) {
+				if (bucket.limited)
+					return Result.DROPPED;
+
+				bucket.limited = true;
+				return Result.REJECTED;
+			}
+
+			bucket.limited = false;
+			bucket.tokens -= 1;
+			return Result.ALLOWED;
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Timer driven by a ticker instead of the clock, which only runs tasks when
+ * told to.
+ * 
+ * Tasks run in deadline order, and in scheduling order for equal deadlines,
+ * on the thread that calls {@link #runDue()}. It isn't thread safe.
+ */
+public final class TickerTimer implements EventTimer {
+
+	private static final class Task implements Comparable<Task> {
+		private final long deadline;
+		private final long sequence;
+		private final FutureTask<Void> future;
+
+		private Task(final long deadline, final long sequence, final FutureTask<Void> future) {
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.future = future;
+		}
+
+		@Override
+		public int compareTo(final Task other) {
+			if (deadline != other.deadline)
+				return deadline < other.deadline ? -1 : 1;
+
+			return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+		}
+	}
+
+	private final Ticker ticker;
+	private final Queue<Task> tasks;
+
+	private long nextSequence;
+
+	public TickerTimer(final Ticker ticker) {
+		this.ticker = checkNotNull(ticker);
+		this.tasks = new PriorityQueue<Task>();
+	}
+
+	@Override
+	public final Future<?> schedule(final Runnable task, final long delay, final TimeUnit unit) {
+		final FutureTask<Void> future = new FutureTask<Void>(task, null);
+		tasks.add(new Task(ticker.read() + unit.toNanos(delay), nextSequence++, future));
+		return future;
+	}
+
+	/**
+	 * Runs the tasks that are due at the current time of the ticker,
+	 * including the ones they schedule themselves.
+	 */
+	public final void runDue() {
+		final long now = ticker.read();
+		while (!tasks.isEmpty() && tasks.peek().deadline <= now) {
+			// Cancelled tasks don't run
+			tasks.poll().future.run();
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Message;
+import es.udc.pfc.xmpp.stanza.Stanza;
+import es.udc.pfc.xmpp.xml.XMLElement;
+
+public class ChessRoomTest {
+
+	private static final String CHESS_NS = "urn:xmpp:gamepfc:chess";
+
+	private static final JID ROOM = JID.jid("room1@conference.localhost");
+	private static final JID ALICE = JID.jid("conference.localhost", "room1", "alice");
+	private static final JID BOB = JID.jid("conference.localhost", "room1", "bob");
+
+	private long now;
+	private List<Stanza> sent;
+	private GameComponent component;
+	private MiniChessRoom room;
+	private JID white;
+	private JID black;
+
+	@Before
+	public void setUp() {
+		now = 0;
+		sent = Lists.newArrayList();
+
+		final Ticker ticker = new Ticker() {
+			@Override
+			public long read() {
+				return now;
+			}
+		};
+		final ComponentPool pool = new ComponentPool("games.localhost", 1, 42, ticker, new TickerTimer(ticker), new StanzaChannel() {
+			@Override
+			public void send(Stanza stanza) {
+				sent.add(stanza);
+			}
+
+			@Override
+			public ListenableFuture<IQ> sendIQ(IQ iq) {
+				return SettableFuture.create();
+			}
+		}, true);
+		component = pool.getShard(0);
+		component.setIdentity(JID.jid("games.localhost"), JID.jid("localhost"));
+
+		room = new MiniChessRoom(component, ROOM);
+		pool.getSessions().joined(JID.jid("alice@localhost/home"), room, ALICE);
+		pool.getSessions().joined(JID.jid("bob@localhost/home"), room, BOB);
+		room.occupantJoined(ALICE);
+		room.occupantJoined(BOB);
+
+		for (final Stanza stanza : sent) {
+			final XMLElement start = ((Message) stanza).getExtension("x", CHESS_NS).getFirstChild("start");
+			if ("WHITE".equals(start.getAttribute("color"))) {
+				white = stanza.getTo();
+			} else {
+				black = stanza.getTo();
+			}
+		}
+		assertNotNull(white);
+		assertNotNull(black);
+		sent.clear();
+	}
+
+	@Test
+	public void parsesCompactMoves() {
+		assertEquals("pong", compact(black, "ping"));
+
+		assertNull(compact(white, "a2a3"));
+		assertEquals("a2a3", getCommands(ROOM));
+	}
+
+	@Test
+	public void fallsBackWhenNotEveryPlayerIsCompact() {
+		assertNull(compact(white, "a2a3"));
+
+		final XMLElement move = getExtension(ROOM).getFirstChild("move");
+		assertNotNull(move);
+		assertEquals("a2", move.getAttribute("from"));
+		assertEquals("a3", move.getAttribute("to"));
+		assertNull(getExtension(ROOM).getAttribute("c"));
+	}
+
+	@Test
+	public void stopsAtFirstFailedCommand() {
+		assertEquals("error:invalid-turn", compact(white, "a2a3 a3a4 ping"));
+		assertEquals("error:unknown-command", compact(black, "castle ping"));
+		assertEquals("pong error:invalid-movement", compact(black, "ping a2a3 ping"));
+	}
+
+	@Test
+	public void capsCommandsPerMessage() {
+		final String[] pings = new String[9];
+		for (int i = 0; i < pings.length; i++) {
+			pings[i] = "ping";
+		}
+
+		assertEquals(Joiner.on(' ').join(Lists.newArrayList(pings).subList(0, 8)) + " error:too-many-commands",
+				compact(white, Joiner.on(' ').join(pings)));
+	}
+
+	@Test
+	public void chargesTokenPerExtraCommand() {
+		// Eight of the ten tokens of the burst
+		compact(white, "ping ping ping ping ping ping ping ping");
+
+		assertEquals("pong pong error:rate-limited", compact(white, "ping ping ping ping"));
+		assertNull(compact(white, "ping"));
+		assertTrue(sent.isEmpty());
+
+		// Each player has its own bucket
+		assertEquals("pong", compact(black, "ping"));
+	}
+
+	@Test
+	public void rejectsUnsupportedVersion() {
+		final Message message = newCompact(white, "2", "ping");
+		room.privateMessageRecieved(message);
+
+		assertEquals("unsupported-version", getExtension(white).getFirstChild("error").getAttribute("status"));
+		assertNull(getExtension(white).getAttribute("c"));
+	}
+
+	@Test
+	public void rejectsMovesBeforeStart() {
+		final MiniChessRoom waiting = new MiniChessRoom(component, JID.jid("room2@conference.localhost"));
+		final JID carol = JID.jid("conference.localhost", "room2", "carol");
+		waiting.occupantJoined(carol);
+		sent.clear();
+
+		waiting.privateMessageRecieved(newCompact(carol, "1", "a2a3"));
+		assertEquals("error:not-started", getCommands(carol));
+	}
+
+	/**
+	 * Sends a batch of compact commands to the room.
+	 *
+	 * @return the commands replied to the sender, or null if none
+	 */
+	@Nullable
+	private String compact(final JID from, final String commands) {
+		sent.clear();
+		room.privateMessageRecieved(newCompact(from, "1", commands));
+		return getCommands(from);
+	}
+
+	private Message newCompact(final JID from, final String version, final String commands) {
+		final Message message = new Message();
+		message.setType(Message.Type.chat);
+		message.setFrom(from);
+		message.setTo(JID.jid("conference.localhost", from.getNode(), "arbiter"));
+
+		final XMLElement x = message.addExtension("x", CHESS_NS);
+		x.setAttribute("v", version);
+		x.setAttribute("c", commands);
+		return message;
+	}
+
+	@Nullable
+	private String getCommands(final JID to) {
+		final XMLElement x = getExtension(to);
+		return x != null ? x.getAttribute("c") : null;
+	}
+
+	/**
+	 * Gets the game extension of the last message sent to the given JID.
+	 */
+	@Nullable
+	private XMLElement getExtension(final JID to) {
+		for (final Stanza stanza : Lists.reverse(sent)) {
+			if (to.equals(stanza.getTo()))
+				return ((Message) stanza).getExtension("x", CHESS_NS);
+		}
+		return null;
+	}
+
+}
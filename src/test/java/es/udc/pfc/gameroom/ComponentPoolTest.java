@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Stanza;
+
+public class ComponentPoolTest {
+
+	private static final String NODE = "room1";
+
+	private ComponentPool pool;
+
+	@Before
+	public void setUp() {
+		final Ticker ticker = Ticker.systemTicker();
+		pool = new ComponentPool("games.localhost", 3, 42, ticker, new TickerTimer(ticker), new StanzaChannel() {
+			@Override
+			public void send(Stanza stanza) {
+			}
+
+			@Override
+			public ListenableFuture<IQ> sendIQ(IQ iq) {
+				return SettableFuture.create();
+			}
+		}, true);
+	}
+
+	@Test
+	public void numbersShardDomains() {
+		assertEquals("games.localhost", ComponentPool.getShardDomain("games.localhost", 0));
+		assertEquals("games-1.localhost", ComponentPool.getShardDomain("games.localhost", 1));
+		assertEquals("games-12.example.com", ComponentPool.getShardDomain("games.example.com", 12));
+		assertEquals("games-2", ComponentPool.getShardDomain("games", 2));
+	}
+
+	@Test
+	public void listsEveryShardJID() {
+		assertEquals(ImmutableList.of(JID.jid("games.localhost"), JID.jid("games-1.localhost"), JID.jid("games-2.localhost")),
+				pool.getShardJIDs());
+	}
+
+	@Test
+	public void fallsBackToHomeWhenNoneOnline() {
+		final GameComponent home = pool.getOwner(NODE);
+
+		assertSame(home, pool.getOwner(NODE));
+		assertSame(pool.getShard((NODE.hashCode() & Integer.MAX_VALUE) % 3), home);
+	}
+
+	@Test
+	public void prefersHomeWhenOnline() {
+		final GameComponent home = pool.getOwner(NODE);
+		setOnline(true, true, true);
+
+		assertSame(home, pool.getOwner(NODE));
+	}
+
+	@Test
+	public void skipsOfflineShards() {
+		final int home = indexOf(pool.getOwner(NODE));
+
+		setOnline(true, true, true);
+		pool.getShard(home).setOnline(false);
+		assertSame(pool.getShard((home + 1) % 3), pool.getOwner(NODE));
+
+		pool.getShard((home + 1) % 3).setOnline(false);
+		assertSame(pool.getShard((home + 2) % 3), pool.getOwner(NODE));
+
+		pool.getShard((home + 2) % 3).setOnline(false);
+		assertSame(pool.getShard(home), pool.getOwner(NODE));
+	}
+
+	@Test
+	public void spreadsRoomsOverShards() {
+		setOnline(true, true, true);
+
+		final int[] rooms = new int[3];
+		for (int i = 0; i < 300; i++) {
+			rooms[indexOf(pool.getOwner("room" + i))]++;
+		}
+		for (final int count : rooms) {
+			assertTrue(count > 50);
+		}
+	}
+
+	private void setOnline(final boolean... online) {
+		for (int i = 0; i < online.length; i++) {
+			pool.getShard(i).setOnline(online[i]);
+		}
+	}
+
+	private int indexOf(final GameComponent shard) {
+		for (int i = 0; i < pool.size(); i++) {
+			if (pool.getShard(i) == shard)
+				return i;
+		}
+		throw new AssertionError("Not a shard of the pool");
+	}
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.mongodb.DBObject;
+
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Message;
+
+/**
+ * Room that only keeps what the lobby and the sessions look at.
+ */
+final class FakeRoom implements Room {
+
+	private final String type;
+	boolean joinable = true;
+	int players;
+
+	FakeRoom(final String type) {
+		this.type = type;
+	}
+
+	@Override
+	public String getType() {
+		return type;
+	}
+
+	@Override
+	public JID getJID() {
+		return null;
+	}
+
+	@Override
+	public boolean joinable() {
+		return joinable;
+	}
+
+	@Override
+	public void joinRoom() {
+	}
+
+	@Override
+	public void leaveRoom() {
+	}
+
+	@Override
+	public ListenableFuture<Void> configureRoom() {
+		return null;
+	}
+
+	@Override
+	public void sendInvitation(JID user, String body) {
+	}
+
+	@Override
+	public int numPlayers() {
+		return players;
+	}
+
+	@Override
+	public void occupantJoined(JID user) {
+	}
+
+	@Override
+	public void occupantLeft(JID user) {
+	}
+
+	@Override
+	public void messageReceived(Message message) {
+	}
+
+	@Override
+	public void privateMessageRecieved(Message message) {
+	}
+
+	@Override
+	public DBObject getDBObject() {
+		return null;
+	}
+
+}
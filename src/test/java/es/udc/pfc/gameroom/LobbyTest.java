@@ -0,0 +1,130 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class LobbyTest {
+
+	private long now;
+	private Lobby lobby;
+
+	@Before
+	public void setUp() {
+		now = 0;
+		lobby = new Lobby(new Ticker() {
+			@Override
+			public long read() {
+				return now;
+			}
+		});
+	}
+
+	@Test
+	public void findsOldestJoinableRoom() {
+		final FakeRoom first = new FakeRoom("minichess");
+		final FakeRoom second = new FakeRoom("minichess");
+		lobby.update(first);
+		lobby.update(second);
+		lobby.update(new FakeRoom("checkers"));
+
+		assertSame(first, lobby.findJoinable("minichess"));
+		assertEquals(2, lobby.count("minichess"));
+		assertEquals(1, lobby.count("checkers"));
+		assertNull(lobby.findJoinable("go"));
+
+		// Updating a room keeps its place
+		first.players = 1;
+		lobby.update(first);
+		assertSame(first, lobby.findJoinable("minichess"));
+		assertEquals(1, lobby.getPage("minichess", null, 1).get(0).getPlayers());
+	}
+
+	@Test
+	public void dropsRoomsThatStopBeingJoinable() {
+		final FakeRoom first = new FakeRoom("minichess");
+		final FakeRoom second = new FakeRoom("minichess");
+		lobby.update(first);
+		lobby.update(second);
+
+		first.joinable = false;
+		lobby.update(first);
+		assertSame(second, lobby.findJoinable("minichess"));
+		assertEquals(1, lobby.count("minichess"));
+
+		lobby.remove(second);
+		assertNull(lobby.findJoinable("minichess"));
+		assertEquals(0, lobby.count("minichess"));
+	}
+
+	@Test
+	public void pagesInCreationOrder() {
+		final FakeRoom[] rooms = new FakeRoom[5];
+		for (int i = 0; i < rooms.length; i++) {
+			rooms[i] = new FakeRoom("minichess");
+			lobby.update(rooms[i]);
+		}
+
+		final List<Lobby.Entry> first = lobby.getPage("minichess", null, 2);
+		assertEquals(2, first.size());
+		assertSame(rooms[0], first.get(0).getRoom());
+		assertSame(rooms[1], first.get(1).getRoom());
+
+		final List<Lobby.Entry> second = lobby.getPage("minichess", first.get(1).getId(), 2);
+		assertEquals(2, second.size());
+		assertSame(rooms[2], second.get(0).getRoom());
+		assertSame(rooms[3], second.get(1).getRoom());
+
+		// The cursor still works after the room it points to is gone
+		lobby.remove(rooms[3]);
+		final List<Lobby.Entry> last = lobby.getPage("minichess", second.get(1).getId(), 2);
+		assertEquals(1, last.size());
+		assertSame(rooms[4], last.get(0).getRoom());
+
+		assertTrue(lobby.getPage("minichess", last.get(0).getId(), 2).isEmpty());
+	}
+
+	@Test
+	public void ignoresBadPages() {
+		lobby.update(new FakeRoom("minichess"));
+
+		assertTrue(lobby.getPage("go", null, 10).isEmpty());
+		assertTrue(lobby.getPage("minichess", "not-a-number", 10).isEmpty());
+		assertTrue(lobby.getPage("minichess", null, 0).isEmpty());
+	}
+
+	@Test
+	public void measuresWaitingTime() {
+		lobby.update(new FakeRoom("minichess"));
+		now += TimeUnit.SECONDS.toNanos(42);
+
+		final Lobby.Entry entry = lobby.getPage("minichess", null, 1).get(0);
+		assertEquals(42, lobby.getWaitingTime(entry, TimeUnit.SECONDS));
+	}
+
+}
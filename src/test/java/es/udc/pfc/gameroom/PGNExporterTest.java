@@ -0,0 +1,161 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+
+public class PGNExporterTest {
+
+	@Test
+	public void exportsFinishedGame() throws IOException {
+		final BSONObject game = newGame("room@conference.localhost", "a2", "a3", "e5", "e4");
+		game.put("started", new GregorianCalendar(2011, 10, 5).getTime());
+		game.put("winner", "WHITE");
+
+		assertEquals("[Event \"minichess\"]\n"
+				+ "[Site \"room@conference.localhost\"]\n"
+				+ "[Date \"2011.11.05\"]\n"
+				+ "[Round \"-\"]\n"
+				+ "[White \"white@localhost\"]\n"
+				+ "[Black \"black@localhost\"]\n"
+				+ "[Result \"1-0\"]\n"
+				+ "\n"
+				+ "1. a2a3 e5e4 1-0\n"
+				+ "\n", export(1, ImmutableList.of(game)));
+	}
+
+	@Test
+	public void exportsMissingFields() throws IOException {
+		final BSONObject game = new BasicBSONObject();
+		game.put("type", "minichess");
+		game.put("room", "room@conference.localhost");
+
+		final String pgn = export(1, ImmutableList.of(game));
+		assertTrue(pgn.contains("[Date \"????.??.??\"]\n"));
+		assertTrue(pgn.contains("[White \"?\"]\n[Black \"?\"]\n[Result \"*\"]\n"));
+		assertTrue(pgn.endsWith("\n\n*\n\n"));
+	}
+
+	@Test
+	public void escapesTags() throws IOException {
+		final BSONObject game = newGame("say \"hi\" \\o/");
+
+		assertTrue(export(1, ImmutableList.of(game)).contains("[Site \"say \\\"hi\\\" \\\\o/\"]\n"));
+	}
+
+	@Test
+	public void wrapsMovetext() throws IOException {
+		final List<String> squares = Lists.newArrayList();
+		for (int i = 0; i < 100; i++) {
+			squares.add("a2");
+			squares.add("a3");
+		}
+		final BSONObject game = newGame("room@conference.localhost", squares.toArray(new String[squares.size()]));
+		game.put("winner", "DRAW");
+
+		final String pgn = export(1, ImmutableList.of(game));
+		final String movetext = pgn.substring(pgn.indexOf("\n\n") + 2, pgn.length() - 2);
+
+		int lines = 0;
+		for (final String line : Splitter.on('\n').split(movetext)) {
+			assertTrue(line, line.length() <= 79);
+			assertTrue(line, !line.startsWith(" ") && !line.endsWith(" "));
+			lines++;
+		}
+		assertTrue(lines > 1);
+		assertTrue(movetext.replace('\n', ' ').startsWith("1. a2a3 a2a3 2. a2a3"));
+		assertTrue(movetext.replace('\n', ' ').endsWith("100. a2a3 a2a3 1/2-1/2"));
+	}
+
+	@Test
+	public void keepsOrderAcrossChunks() throws IOException {
+		final List<BSONObject> games = Lists.newArrayList();
+		for (int i = 0; i < 2500; i++) {
+			games.add(newGame("room" + i + "@conference.localhost"));
+		}
+
+		final String pgn = export(3, games);
+
+		int expected = 0;
+		int from = 0;
+		while ((from = pgn.indexOf("[Site \"", from)) >= 0) {
+			from += 7;
+			assertEquals("room" + expected + "@conference.localhost", pgn.substring(from, pgn.indexOf('"', from)));
+			expected++;
+		}
+		assertEquals(2500, expected);
+	}
+
+	@Test
+	public void countsGames() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(0, new PGNExporter(2).export(Collections.<BSONObject> emptyList(), out));
+		assertEquals(1001, new PGNExporter(2).export(Collections.nCopies(1001, newGame("room@conference.localhost")), new ByteArrayOutputStream()));
+	}
+
+	private static final BSONObject newGame(final String room, final String... squares) {
+		final BSONObject game = new BasicBSONObject();
+		game.put("type", "minichess");
+		game.put("room", room);
+
+		final List<Object> players = new BasicBSONList();
+		players.add("white@localhost");
+		players.add("black@localhost");
+		game.put("players", players);
+
+		final List<Object> moves = new BasicBSONList();
+		for (int i = 0; i < squares.length; i += 2) {
+			final BSONObject move = new BasicBSONObject();
+			move.put("from", squares[i]);
+			move.put("to", squares[i + 1]);
+			moves.add(move);
+		}
+		game.put("moves", moves);
+
+		return game;
+	}
+
+	private static final String export(final int threads, final List<BSONObject> games) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PGNExporter(threads).export(games, out);
+
+		return CharStreams.toString(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), Charsets.UTF_8));
+	}
+
+}
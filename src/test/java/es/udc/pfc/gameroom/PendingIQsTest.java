@@ -0,0 +1,221 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.Stanza;
+
+public class PendingIQsTest {
+
+	private long now;
+	private TickerTimer timer;
+	private List<SettableFuture<IQ>> responses;
+	private PendingIQs pending;
+
+	@Before
+	public void setUp() {
+		now = 0;
+		timer = new TickerTimer(new Ticker() {
+			@Override
+			public long read() {
+				return now;
+			}
+		});
+		responses = Lists.newArrayList();
+		pending = new PendingIQs(new StanzaChannel() {
+			@Override
+			public void send(Stanza stanza) {
+			}
+
+			@Override
+			public ListenableFuture<IQ> sendIQ(IQ iq) {
+				final SettableFuture<IQ> response = SettableFuture.create();
+				responses.add(response);
+				return response;
+			}
+		}, timer, new Random(42), 2, 10, 1, 2, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void completesWithResponse() throws Exception {
+		final ListenableFuture<IQ> result = pending.sendIQ(new IQ(IQ.Type.set));
+		assertEquals(1, pending.getOutstanding());
+
+		final IQ response = new IQ(IQ.Type.result);
+		responses.get(0).set(response);
+
+		assertSame(response, result.get());
+		assertEquals(0, pending.getOutstanding());
+
+		// The deadline was cancelled with the response
+		advance(10);
+		assertEquals(0, pending.getTimedOut());
+	}
+
+	@Test
+	public void timesOutSetWithoutRetrying() {
+		final ListenableFuture<IQ> result = pending.sendIQ(new IQ(IQ.Type.set));
+
+		advance(9);
+		assertFalse(result.isDone());
+
+		advance(1);
+		assertTimedOut(result);
+		assertTrue(responses.get(0).isCancelled());
+		assertEquals(1, responses.size());
+		assertEquals(0, pending.getOutstanding());
+		assertEquals(1, pending.getTimedOut());
+		assertEquals(0, pending.getRetried());
+
+		advance(10);
+		assertEquals(1, responses.size());
+	}
+
+	@Test
+	public void retriesGetUntilResponse() throws Exception {
+		final ListenableFuture<IQ> result = pending.sendIQ(new IQ(IQ.Type.get));
+
+		advance(10);
+		assertFalse(result.isDone());
+		assertEquals(1, responses.size());
+
+		// The first backoff is jittered between half and all of a second
+		advance(1);
+		assertEquals(2, responses.size());
+		assertEquals(1, pending.getRetried());
+
+		final IQ response = new IQ(IQ.Type.result);
+		responses.get(1).set(response);
+
+		assertSame(response, result.get());
+		assertEquals(0, pending.getOutstanding());
+		assertEquals(1, pending.getTimedOut());
+	}
+
+	@Test
+	public void givesUpAfterMaxRetries() {
+		final ListenableFuture<IQ> result = pending.sendIQ(new IQ(IQ.Type.get));
+
+		// Timeouts of 10 seconds, with backoffs of up to 1 and 2 seconds
+		advance(10);
+		advance(1);
+		advance(10);
+		advance(2);
+		assertEquals(3, responses.size());
+		assertFalse(result.isDone());
+
+		advance(10);
+		assertTimedOut(result);
+		assertEquals(3, pending.getTimedOut());
+		assertEquals(2, pending.getRetried());
+		assertEquals(0, pending.getOutstanding());
+
+		advance(10);
+		assertEquals(3, responses.size());
+	}
+
+	@Test
+	public void rejectsBeyondMaxPending() {
+		pending.sendIQ(new IQ(IQ.Type.set));
+		pending.sendIQ(new IQ(IQ.Type.set));
+
+		final ListenableFuture<IQ> result = pending.sendIQ(new IQ(IQ.Type.set));
+		assertTrue(result.isDone());
+		assertEquals(2, responses.size());
+		assertEquals(2, pending.getOutstanding());
+		assertEquals(1, pending.getRejected());
+
+		responses.get(0).set(new IQ(IQ.Type.result));
+		assertFalse(pending.sendIQ(new IQ(IQ.Type.set)).isDone());
+		assertEquals(1, pending.getRejected());
+	}
+
+	@Test
+	public void ignoresLateResponse() throws Exception {
+		final ListenableFuture<IQ> set = pending.sendIQ(new IQ(IQ.Type.set));
+		final ListenableFuture<IQ> get = pending.sendIQ(new IQ(IQ.Type.get));
+
+		advance(10);
+		assertFalse(responses.get(0).set(new IQ(IQ.Type.result)));
+		assertFalse(responses.get(1).set(new IQ(IQ.Type.result)));
+		assertTimedOut(set);
+		assertFalse(get.isDone());
+
+		advance(1);
+		final IQ response = new IQ(IQ.Type.result);
+		responses.get(2).set(response);
+		assertSame(response, get.get());
+		assertEquals(0, pending.getOutstanding());
+	}
+
+	@Test
+	public void failsWithConnectionError() {
+		final ListenableFuture<IQ> result = pending.sendIQ(new IQ(IQ.Type.get));
+		final Exception error = new Exception("disconnected");
+		responses.get(0).setException(error);
+
+		try {
+			result.get();
+			fail("Expected the error of the connection");
+		} catch (ExecutionException e) {
+			assertSame(error, e.getCause());
+		} catch (InterruptedException e) {
+			fail("Interrupted");
+		}
+		assertEquals(0, pending.getOutstanding());
+		assertEquals(0, pending.getRetried());
+	}
+
+	private void advance(final long seconds) {
+		now += TimeUnit.SECONDS.toNanos(seconds);
+		timer.runDue();
+	}
+
+	private static void assertTimedOut(final ListenableFuture<IQ> result) {
+		assertTrue(result.isDone());
+		try {
+			result.get();
+			fail("Expected a timeout");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		} catch (InterruptedException e) {
+			fail("Interrupted");
+		}
+	}
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Presence;
+
+public class PresenceBufferTest {
+
+	private PresenceBuffer buffer;
+
+	@Before
+	public void setUp() {
+		buffer = new PresenceBuffer();
+	}
+
+	@Test
+	public void keepsLatestPresence() {
+		buffer.add(leave("room1", "alice"));
+		final Presence join = join("room1", "alice");
+		buffer.add(join);
+
+		final Map<String, Collection<Presence>> batch = buffer.drain();
+		assertEquals(1, batch.size());
+		assertEquals(1, batch.get("room1").size());
+		assertSame(join, batch.get("room1").iterator().next());
+
+		assertEquals(2, buffer.getReceived());
+		assertEquals(1, buffer.getApplied());
+	}
+
+	@Test
+	public void keepsFirstArrivalOrder() {
+		final Presence bob = join("room2", "bob");
+		buffer.add(join("room1", "alice"));
+		buffer.add(bob);
+		buffer.add(join("room1", "carol"));
+		final Presence alice = join("room1", "alice");
+		buffer.add(alice);
+
+		final Map<String, Collection<Presence>> batch = buffer.drain();
+		assertEquals(ImmutableList.of("room1", "room2"), ImmutableList.copyOf(batch.keySet()));
+
+		final Iterator<Presence> room1 = batch.get("room1").iterator();
+		assertSame(alice, room1.next());
+		assertEquals(occupant("room1", "carol"), room1.next().getFrom());
+		assertFalse(room1.hasNext());
+
+		assertSame(bob, batch.get("room2").iterator().next());
+	}
+
+	@Test
+	public void appliesJoinsBeforeLeaves() {
+		buffer.add(join("room1", "alice"));
+		buffer.add(join("room1", "bob"));
+		final Presence alice = leave("room1", "alice");
+		buffer.add(alice);
+		final Presence carol = join("room1", "carol");
+		buffer.add(carol);
+		final Presence bob = leave("room1", "bob");
+		buffer.add(bob);
+
+		final Iterator<Presence> room1 = buffer.drain().get("room1").iterator();
+		assertSame(carol, room1.next());
+		assertSame(alice, room1.next());
+		assertSame(bob, room1.next());
+		assertFalse(room1.hasNext());
+	}
+
+	@Test
+	public void reportsFirstPresenceOfBatch() {
+		assertTrue(buffer.add(join("room1", "alice")));
+		assertFalse(buffer.add(join("room1", "bob")));
+		assertFalse(buffer.add(join("room2", "carol")));
+
+		assertEquals(2, buffer.drain().size());
+		assertTrue(buffer.drain().isEmpty());
+
+		assertTrue(buffer.add(leave("room1", "alice")));
+	}
+
+	@Test
+	public void clears() {
+		buffer.add(join("room1", "alice"));
+		buffer.clear();
+
+		assertTrue(buffer.drain().isEmpty());
+		assertTrue(buffer.add(join("room1", "alice")));
+	}
+
+	private static final JID occupant(final String room, final String nick) {
+		return JID.jid("conference.localhost", room, nick);
+	}
+
+	private static final Presence join(final String room, final String nick) {
+		final Presence presence = new Presence();
+		presence.setFrom(occupant(room, nick));
+		return presence;
+	}
+
+	private static final Presence leave(final String room, final String nick) {
+		final Presence presence = new Presence(Presence.Type.unavailable);
+		presence.setFrom(occupant(room, nick));
+		return presence;
+	}
+
+}
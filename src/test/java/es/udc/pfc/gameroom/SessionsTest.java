@@ -0,0 +1,108 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import es.udc.pfc.xmpp.stanza.JID;
+
+public class SessionsTest {
+
+	private static final JID LAPTOP = JID.jid("alice@localhost/laptop");
+	private static final JID PHONE = JID.jid("alice@localhost/phone");
+	private static final JID BOB = JID.jid("bob@localhost/home");
+
+	private Sessions sessions;
+	private Room first;
+	private Room second;
+
+	@Before
+	public void setUp() {
+		sessions = new Sessions();
+		first = new FakeRoom("minichess");
+		second = new FakeRoom("minichess");
+	}
+
+	@Test
+	public void findsRoomsFromAnyResource() {
+		sessions.invited(LAPTOP, first);
+		sessions.invited(PHONE, second);
+		sessions.invited(BOB, second);
+
+		assertEquals(ImmutableSet.of(first, second), sessions.getRooms(LAPTOP));
+		assertEquals(ImmutableSet.of(first, second), sessions.getRooms(PHONE));
+		assertEquals(ImmutableSet.of(first, second), sessions.getRooms(Sessions.bareJID(PHONE)));
+		assertEquals(ImmutableSet.of(second), sessions.getRooms(BOB));
+	}
+
+	@Test
+	public void removesOnlyTheResourceGoingOffline() {
+		final JID occupant = JID.jid("conference.localhost", "room1", "alice");
+		sessions.joined(LAPTOP, first, occupant);
+		sessions.invited(PHONE, second);
+
+		final Map<Room, JID> removed = sessions.removeUser(LAPTOP);
+
+		assertEquals(1, removed.size());
+		assertEquals(occupant, removed.get(first));
+		assertEquals(ImmutableSet.of(second), sessions.getRooms(LAPTOP));
+		assertTrue(sessions.removeUser(LAPTOP).isEmpty());
+	}
+
+	@Test
+	public void skipsInvitationsWhenRemovingUser() {
+		sessions.invited(LAPTOP, first);
+
+		assertTrue(sessions.removeUser(LAPTOP).isEmpty());
+		assertTrue(sessions.getRooms(PHONE).isEmpty());
+	}
+
+	@Test
+	public void findsUserBehindOccupant() {
+		final JID occupant = JID.jid("conference.localhost", "room1", "alice");
+		sessions.joined(PHONE, first, occupant);
+
+		assertEquals(PHONE, sessions.getUser(first, occupant));
+		assertNull(sessions.getUser(second, occupant));
+		assertNull(sessions.getUser(first, JID.jid("conference.localhost", "room1", "bob")));
+	}
+
+	@Test
+	public void forgetsLeftAndRemovedRooms() {
+		sessions.invited(LAPTOP, first);
+		sessions.invited(PHONE, second);
+		sessions.invited(BOB, second);
+
+		sessions.left(LAPTOP, first);
+		assertEquals(ImmutableSet.of(second), sessions.getRooms(LAPTOP));
+
+		sessions.removeRoom(second);
+		assertTrue(sessions.getRooms(PHONE).isEmpty());
+		assertTrue(sessions.getRooms(BOB).isEmpty());
+	}
+
+}
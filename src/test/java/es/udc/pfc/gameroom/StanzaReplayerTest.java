@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import es.udc.pfc.xmpp.stanza.IQ;
+import es.udc.pfc.xmpp.stanza.JID;
+import es.udc.pfc.xmpp.stanza.Message;
+import es.udc.pfc.xmpp.stanza.Presence;
+import es.udc.pfc.xmpp.stanza.Stanza;
+import es.udc.pfc.xmpp.stanza.XMPPNamespaces;
+import es.udc.pfc.xmpp.xml.XMLElement;
+
+public class StanzaReplayerTest {
+
+	private static final JID COMPONENT = JID.jid("games.localhost");
+	private static final JID ALICE = JID.jid("alice@localhost/home");
+	private static final JID BOB = JID.jid("bob@localhost/home");
+
+	private List<Stanza> sent;
+	private ByteArrayOutputStream out;
+	private GameComponent component;
+
+	@Before
+	public void setUp() throws Exception {
+		sent = Lists.newArrayList();
+		out = new ByteArrayOutputStream();
+
+		final Ticker ticker = new Ticker() {
+			@Override
+			public long read() {
+				return 0;
+			}
+		};
+		// Replaying, so games aren't saved and presences wait for flushPresences()
+		component = new ComponentPool("games.localhost", 1, 42, ticker, new TickerTimer(ticker), new StanzaChannel() {
+			@Override
+			public void send(Stanza stanza) {
+				sent.add(stanza);
+			}
+
+			@Override
+			public ListenableFuture<IQ> sendIQ(IQ iq) {
+				sent.add(iq);
+
+				// Every room gets the same name, as it is only requested once
+				final IQ result = new IQ(IQ.Type.result);
+				result.setId(iq.getId());
+				result.setFrom(iq.getTo());
+				result.setTo(iq.getFrom());
+				if (iq.getExtension("unique", XMPPNamespaces.MUC_UNIQUE) != null) {
+					result.addExtension("unique", XMPPNamespaces.MUC_UNIQUE).setText("room1");
+				}
+				return Futures.immediateFuture(result);
+			}
+		}, true).getShard(0);
+
+		component.startCapture(out);
+		component.setIdentity(COMPONENT, JID.jid("localhost"));
+	}
+
+	@Test
+	public void replaysCapturedSession() throws Exception {
+		component.handleMessage(play(ALICE));
+		component.handleMessage(play(BOB));
+
+		component.handlePresence(join(ALICE, "alice"));
+		component.handlePresence(join(BOB, "bob"));
+		component.flushPresences();
+
+		component.handleMessage(ping("alice"));
+		component.handleIQ(discoItems("disco1", "minichess"));
+		component.handleIQ(new IQ(IQ.Type.set));
+
+		component.handlePresence(leave("bob"));
+		component.flushPresences();
+
+		component.stopCapture();
+
+		// Unique name and configuration IQs, arbiter join, subject, two
+		// invitations, two starts, the pong and the forfeit at least
+		assertTrue(sent.size() >= 10);
+		assertEquals(0, new StanzaReplayer().replay(new ByteArrayInputStream(out.toByteArray()), false));
+	}
+
+	@Test
+	public void detectsDifferentOutput() throws Exception {
+		component.handleMessage(play(ALICE));
+		component.stopCapture();
+
+		final byte[] capture = out.toByteArray();
+		// Tamper with the requested game type of the play message
+		final String tampered = new String(capture, "ISO-8859-1").replace("minichess", "minichesz");
+		assertTrue(new StanzaReplayer().replay(new ByteArrayInputStream(tampered.getBytes("ISO-8859-1")), false) > 0);
+	}
+
+	private static Message play(final JID from) {
+		final Message message = new Message();
+		message.setFrom(from);
+		message.setTo(COMPONENT);
+		message.addExtension("play", "urn:xmpp:gamepfc").setAttribute("game", "minichess");
+		return message;
+	}
+
+	private static Presence join(final JID user, final String nick) {
+		final Presence presence = new Presence();
+		presence.setFrom(JID.jid("conference.localhost", "room1", nick));
+		presence.setTo(COMPONENT);
+		presence.addExtension("x", XMPPNamespaces.MUC_USER).addChild("item").setAttribute("jid", user.toString());
+		return presence;
+	}
+
+	private static Presence leave(final String nick) {
+		final Presence presence = new Presence(Presence.Type.unavailable);
+		presence.setFrom(JID.jid("conference.localhost", "room1", nick));
+		presence.setTo(COMPONENT);
+		return presence;
+	}
+
+	private static Message ping(final String nick) {
+		final Message message = new Message();
+		message.setType(Message.Type.chat);
+		message.setFrom(JID.jid("conference.localhost", "room1", nick));
+		message.setTo(COMPONENT);
+
+		final XMLElement x = message.addExtension("x", "urn:xmpp:gamepfc:chess");
+		x.setAttribute("v", "1");
+		x.setAttribute("c", "ping");
+		return message;
+	}
+
+	private static IQ discoItems(final String id, final String node) {
+		final IQ iq = new IQ(IQ.Type.get);
+		iq.setId(id);
+		iq.setFrom(ALICE);
+		iq.setTo(COMPONENT);
+		iq.addExtension("query", "http://jabber.org/protocol/disco#items").setAttribute("node", node);
+		return iq;
+	}
+
+}
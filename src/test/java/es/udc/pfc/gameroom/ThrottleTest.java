@@ -0,0 +1,100 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import es.udc.pfc.xmpp.stanza.JID;
+
+public class ThrottleTest {
+
+	private static final JID ALICE = JID.jid("alice@localhost");
+	private static final JID BOB = JID.jid("bob@localhost");
+
+	private long now;
+	private Throttle throttle;
+
+	@Before
+	public void setUp() {
+		now = 0;
+		throttle = new Throttle(1, 3, 100, new Ticker() {
+			@Override
+			public long read() {
+				return now;
+			}
+		});
+	}
+
+	@Test
+	public void allowsBurst() {
+		assertEquals(Throttle.Result.ALLOWED, throttle.acquire(ALICE));
+		assertEquals(Throttle.Result.ALLOWED, throttle.acquire(ALICE));
+		assertEquals(Throttle.Result.ALLOWED, throttle.acquire(ALICE));
+		assertEquals(Throttle.Result.REJECTED, throttle.acquire(ALICE));
+	}
+
+	@Test
+	public void reportsOnlyFirstRejection() {
+		exhaust(ALICE);
+
+		assertEquals(Throttle.Result.REJECTED, throttle.acquire(ALICE));
+		assertEquals(Throttle.Result.DROPPED, throttle.acquire(ALICE));
+		assertEquals(Throttle.Result.DROPPED, throttle.acquire(ALICE));
+
+		now += TimeUnit.SECONDS.toNanos(1);
+		assertEquals(Throttle.Result.ALLOWED, throttle.acquire(ALICE));
+		assertEquals(Throttle.Result.REJECTED, throttle.acquire(ALICE));
+	}
+
+	@Test
+	public void refillsOverTime() {
+		exhaust(ALICE);
+
+		now += TimeUnit.MILLISECONDS.toNanos(500);
+		assertEquals(Throttle.Result.REJECTED, throttle.acquire(ALICE));
+
+		now += TimeUnit.MILLISECONDS.toNanos(500);
+		assertEquals(Throttle.Result.ALLOWED, throttle.acquire(ALICE));
+
+		// Never above the burst size, however long the user waits
+		now += TimeUnit.HOURS.toNanos(1);
+		exhaust(ALICE);
+		assertEquals(Throttle.Result.REJECTED, throttle.acquire(ALICE));
+	}
+
+	@Test
+	public void keepsUsersApart() {
+		exhaust(ALICE);
+
+		assertEquals(Throttle.Result.ALLOWED, throttle.acquire(BOB));
+		assertEquals(Throttle.Result.REJECTED, throttle.acquire(ALICE));
+	}
+
+	private final void exhaust(final JID user) {
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Throttle.Result.ALLOWED, throttle.acquire(user));
+		}
+	}
+
+}
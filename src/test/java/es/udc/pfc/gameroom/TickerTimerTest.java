@@ -0,0 +1,128 @@
+/**
+ * Copyright 2011 José Martínez
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package es.udc.pfc.gameroom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class TickerTimerTest {
+
+	private long now;
+	private TickerTimer timer;
+	private List<String> ran;
+
+	@Before
+	public void setUp() {
+		now = 0;
+		timer = new TickerTimer(new Ticker() {
+			@Override
+			public long read() {
+				return now;
+			}
+		});
+		ran = Lists.newArrayList();
+	}
+
+	@Test
+	public void runsOnlyDueTasks() {
+		timer.schedule(record("late"), 2, TimeUnit.SECONDS);
+		timer.schedule(record("early"), 1, TimeUnit.SECONDS);
+
+		timer.runDue();
+		assertTrue(ran.isEmpty());
+
+		now = TimeUnit.SECONDS.toNanos(1);
+		timer.runDue();
+		assertEquals(ImmutableList.of("early"), ran);
+
+		now = TimeUnit.SECONDS.toNanos(5);
+		timer.runDue();
+		assertEquals(ImmutableList.of("early", "late"), ran);
+	}
+
+	@Test
+	public void runsInDeadlineThenSchedulingOrder() {
+		timer.schedule(record("second"), 1, TimeUnit.SECONDS);
+		timer.schedule(record("third"), 1000, TimeUnit.MILLISECONDS);
+		timer.schedule(record("first"), 500, TimeUnit.MILLISECONDS);
+
+		now = TimeUnit.SECONDS.toNanos(1);
+		timer.runDue();
+		assertEquals(ImmutableList.of("first", "second", "third"), ran);
+	}
+
+	@Test
+	public void skipsCancelledTasks() {
+		final Future<?> cancelled = timer.schedule(record("cancelled"), 1, TimeUnit.SECONDS);
+		timer.schedule(record("kept"), 1, TimeUnit.SECONDS);
+		assertTrue(cancelled.cancel(false));
+
+		now = TimeUnit.SECONDS.toNanos(1);
+		timer.runDue();
+		assertEquals(ImmutableList.of("kept"), ran);
+		assertTrue(cancelled.isCancelled());
+	}
+
+	@Test
+	public void runsTasksScheduledByDueTasks() {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				ran.add("outer");
+				timer.schedule(record("now"), 0, TimeUnit.SECONDS);
+				timer.schedule(record("later"), 1, TimeUnit.SECONDS);
+			}
+		}, 1, TimeUnit.SECONDS);
+
+		now = TimeUnit.SECONDS.toNanos(1);
+		timer.runDue();
+		assertEquals(ImmutableList.of("outer", "now"), ran);
+
+		now = TimeUnit.SECONDS.toNanos(2);
+		timer.runDue();
+		assertEquals(ImmutableList.of("outer", "now", "later"), ran);
+	}
+
+	@Test
+	public void completesFutures() {
+		final Future<?> future = timer.schedule(record("task"), 0, TimeUnit.SECONDS);
+		timer.runDue();
+		assertTrue(future.isDone());
+	}
+
+	private Runnable record(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				ran.add(name);
+			}
+		};
+	}
+
+}